@@ -0,0 +1,26 @@
+package org.seedkeeper.host;
+
+import java.io.IOException;
+
+/**
+ * ApduChannel Interface
+ * <p>
+ *
+ * A channel to a SeedKeeper, used by the host tools. An implementation for a
+ * physical card takes care of the secure channel: commands are given and
+ * responses returned in plain.
+ */
+public interface ApduChannel {
+
+    /**
+     * Sends a command APDU to the card.
+     *
+     * @param apdu
+     *            The command [CLA | INS | P1 | P2 | Lc | data]
+     * @return The response [data | SW1 | SW2]
+     * @throws IOException
+     *             If the card cannot be reached
+     */
+    byte[] transmit(byte[] apdu) throws IOException;
+
+}
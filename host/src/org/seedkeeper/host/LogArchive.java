@@ -0,0 +1,345 @@
+package org.seedkeeper.host;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LogArchive Class
+ * <p>
+ *
+ * An append-only archive of the logs of many cards, stored in a directory as
+ * memory-mapped files, so that it can hold millions of records without loading
+ * them in the heap:
+ *
+ * <pre>
+ *   segment-NNNNN: segments of entries_per_segment entries, appended in order
+ *     entry: [card(4b) | sequence(4b) | record(7b) | RFU(1b) | previous(8b)]
+ *   index: [header(64b) | card entries(128b each)]
+ *     header: [magic(4b) | version(4b) | entries_per_segment(8b) | end(8b) | nb_cards(4b) | RFU]
+ *     card: [authentikey(32b) | next_sequence(4b) | RFU(4b) | nb_records(8b) | last(8b) | nb_lost(8b) | chain(32b) | RFU]
+ * </pre>
+ *
+ * A record is the 7 bytes log in the fixed format of the card
+ * [ins(1b) | id1(2b) | id2(2b) | result(2b)]. Entries are addressed by their
+ * number in the archive: 'previous' is the number of the previous entry of the
+ * same card (or -1), and 'last' the most recent one, so the records of a card
+ * are walked without scanning the others.
+ * <p>
+ *
+ * Segment files are mapped and grown on demand, doubling up to
+ * entries_per_segment entries, so that a small archive stays small on disk.
+ * <p>
+ *
+ * The index is only updated once the entries it refers to are written to the
+ * segments: after a crash, the archive is in the state of the last append()
+ * completed, and entries past 'end' are overwritten.
+ */
+public class LogArchive implements Closeable {
+
+    public static final int KEY_SIZE = 32;
+    public static final int RECORD_SIZE = 7;
+    public static final int CHAIN_SIZE = 32;
+    public static final long NULL_ENTRY = -1;
+    public static final long DEFAULT_ENTRIES_PER_SEGMENT = 1 << 22; // segments up to 96MB
+    private static final long MIN_MAPPED_ENTRIES = 1 << 12; // 96KB
+
+    private static final int MAGIC = 0x534B4C41; // "SKLA"
+    private static final int VERSION = 1;
+
+    private static final int ENTRY_SIZE = 24;
+    private static final int ENTRY_CARD = 0;
+    private static final int ENTRY_SEQUENCE = 4;
+    private static final int ENTRY_RECORD = 8;
+    private static final int ENTRY_PREVIOUS = 16;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_ENTRIES_PER_SEGMENT = 8;
+    private static final int HEADER_END = 16;
+    private static final int HEADER_NB_CARDS = 24;
+
+    private static final int CARD_SIZE = 128;
+    private static final int CARD_KEY = 0;
+    private static final int CARD_NEXT_SEQUENCE = 32;
+    private static final int CARD_NB_RECORDS = 40;
+    private static final int CARD_LAST = 48;
+    private static final int CARD_NB_LOST = 56;
+    private static final int CARD_CHAIN = 64;
+
+    /** Receives the records of a query */
+    public interface Visitor {
+        /**
+         * @param card
+         *            The card number in the archive
+         * @param sequence
+         *            The sequence number of the record on the card
+         * @param record
+         *            The record [ins(1b) | id1(2b) | id2(2b) | result(2b)]
+         * @return false to stop the query
+         */
+        boolean visit(int card, long sequence, byte[] record);
+    }
+
+    private final File dir;
+    private final long entries_per_segment;
+    private MappedByteBuffer index;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    /** card number by authentikey (hex), a few hundred entries */
+    private final Map<String, Integer> cards = new HashMap<String, Integer>();
+
+    /** Opens the archive in dir, or creates it with default segments */
+    public LogArchive(File dir) throws IOException {
+        this(dir, DEFAULT_ENTRIES_PER_SEGMENT);
+    }
+
+    /**
+     * Opens the archive in dir, or creates it.
+     *
+     * @param dir
+     *            The directory of the archive
+     * @param entries_per_segment
+     *            The number of entries in a segment for a new archive (an
+     *            existing archive keeps its own)
+     */
+    public LogArchive(File dir, long entries_per_segment) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+        File file = new File(dir, "index");
+        boolean exists = file.exists();
+        mapIndex(exists ? (int) file.length() : HEADER_SIZE + 16 * CARD_SIZE);
+        if (!exists) {
+            index.putInt(HEADER_MAGIC, MAGIC);
+            index.putInt(HEADER_VERSION, VERSION);
+            index.putLong(HEADER_ENTRIES_PER_SEGMENT, entries_per_segment);
+            index.putLong(HEADER_END, 0);
+            index.putInt(HEADER_NB_CARDS, 0);
+            index.force();
+        } else if (index.getInt(HEADER_MAGIC) != MAGIC || index.getInt(HEADER_VERSION) != VERSION) {
+            throw new IOException("not a log archive: " + file);
+        }
+        this.entries_per_segment = index.getLong(HEADER_ENTRIES_PER_SEGMENT);
+        for (int card = 0; card < getNbCards(); card++)
+            cards.put(toHex(getCardKey(card)), card);
+    }
+
+    private void mapIndex(int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, "index"), "rw");
+        try {
+            index = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns segment n, mapped over at least nb_entries entries. The mapping
+     * covers the whole file, and grows it by doubling when more entries are
+     * needed.
+     */
+    private MappedByteBuffer getSegment(int n, long nb_entries) throws IOException {
+        while (segments.size() <= n)
+            segments.add(null);
+        MappedByteBuffer segment = segments.get(n);
+        if (segment != null && segment.capacity() >= nb_entries * ENTRY_SIZE)
+            return segment;
+        File file = new File(dir, String.format("segment-%05d", n));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long mapped = Math.max(raf.length() / ENTRY_SIZE, MIN_MAPPED_ENTRIES);
+            if (segment != null)
+                mapped = Math.max(mapped, 2 * (segment.capacity() / ENTRY_SIZE));
+            mapped = Math.min(Math.max(mapped, nb_entries), entries_per_segment);
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mapped * ENTRY_SIZE);
+        } finally {
+            raf.close();
+        }
+        segments.set(n, segment);
+        return segment;
+    }
+
+    /** Returns the segment holding an entry, positioned on this entry */
+    private MappedByteBuffer getEntry(long entry) throws IOException {
+        long pos = entry % entries_per_segment;
+        MappedByteBuffer segment = getSegment((int) (entry / entries_per_segment), pos + 1);
+        segment.position((int) pos * ENTRY_SIZE);
+        return segment;
+    }
+
+    /** Returns the number of entries in the archive */
+    public long getNbEntries() {
+        return index.getLong(HEADER_END);
+    }
+
+    public int getNbCards() {
+        return index.getInt(HEADER_NB_CARDS);
+    }
+
+    private int cardOffset(int card) {
+        if (card < 0 || card >= getNbCards())
+            throw new IllegalArgumentException("no card " + card);
+        return HEADER_SIZE + card * CARD_SIZE;
+    }
+
+    /** Returns the card number of an authentikey, or -1 if unknown */
+    public int findCard(byte[] authentikey) {
+        Integer card = cards.get(toHex(authentikey));
+        return (card == null) ? -1 : card;
+    }
+
+    /** Returns the card number of an authentikey, adding the card if unknown */
+    public int addCard(byte[] authentikey) throws IOException {
+        if (authentikey.length != KEY_SIZE)
+            throw new IllegalArgumentException("wrong authentikey size");
+        int card = findCard(authentikey);
+        if (card >= 0)
+            return card;
+        card = getNbCards();
+        int offset = HEADER_SIZE + card * CARD_SIZE;
+        if (offset + CARD_SIZE > index.capacity())
+            mapIndex(HEADER_SIZE + 2 * (index.capacity() - HEADER_SIZE));
+        for (int i = 0; i < CARD_SIZE; i++)
+            index.put(offset + i, (byte) 0);
+        for (int i = 0; i < KEY_SIZE; i++)
+            index.put(offset + CARD_KEY + i, authentikey[i]);
+        index.putLong(offset + CARD_LAST, NULL_ENTRY);
+        index.force();
+        index.putInt(HEADER_NB_CARDS, card + 1);
+        index.force();
+        cards.put(toHex(authentikey), card);
+        return card;
+    }
+
+    public byte[] getCardKey(int card) {
+        byte[] key = new byte[KEY_SIZE];
+        int offset = cardOffset(card);
+        for (int i = 0; i < KEY_SIZE; i++)
+            key[i] = index.get(offset + CARD_KEY + i);
+        return key;
+    }
+
+    /** Returns the sequence number of the next record expected from a card */
+    public long getNextSequence(int card) {
+        return index.getInt(cardOffset(card) + CARD_NEXT_SEQUENCE) & 0xFFFFFFFFL;
+    }
+
+    public long getNbRecords(int card) {
+        return index.getLong(cardOffset(card) + CARD_NB_RECORDS);
+    }
+
+    /** Returns the number of records dropped by the card before they could be archived */
+    public long getNbLost(int card) {
+        return index.getLong(cardOffset(card) + CARD_NB_LOST);
+    }
+
+    /** Returns the hash chain of the card after its last record archived */
+    public byte[] getChain(int card) {
+        byte[] chain = new byte[CHAIN_SIZE];
+        int offset = cardOffset(card);
+        for (int i = 0; i < CHAIN_SIZE; i++)
+            chain[i] = index.get(offset + CARD_CHAIN + i);
+        return chain;
+    }
+
+    /**
+     * Appends the records of a card.
+     *
+     * @param card
+     *            The card number
+     * @param sequence
+     *            The sequence number of the first (oldest) record
+     * @param records
+     *            The records, oldest first
+     * @param offset
+     *            The offset of the first record in records[]
+     * @param count
+     *            The number of records
+     * @param nb_lost
+     *            The number of records lost before this batch
+     * @param chain
+     *            The hash chain of the card after the last record
+     */
+    public void append(int card, long sequence, byte[] records, int offset, int count, long nb_lost, byte[] chain)
+            throws IOException {
+        int card_offset = cardOffset(card);
+        long end = getNbEntries();
+        long last = index.getLong(card_offset + CARD_LAST);
+        for (int i = 0; i < count; i++) {
+            MappedByteBuffer segment = getEntry(end);
+            int pos = segment.position();
+            segment.putInt(pos + ENTRY_CARD, card);
+            segment.putInt(pos + ENTRY_SEQUENCE, (int) (sequence + i));
+            for (int j = 0; j < RECORD_SIZE; j++)
+                segment.put(pos + ENTRY_RECORD + j, records[offset + i * RECORD_SIZE + j]);
+            segment.put(pos + ENTRY_RECORD + RECORD_SIZE, (byte) 0);
+            segment.putLong(pos + ENTRY_PREVIOUS, last);
+            last = end++;
+        }
+        // entries must be on disk before the index refers to them
+        for (MappedByteBuffer segment : segments)
+            if (segment != null)
+                segment.force();
+        index.putInt(card_offset + CARD_NEXT_SEQUENCE, (int) (sequence + count));
+        index.putLong(card_offset + CARD_NB_RECORDS, getNbRecords(card) + count);
+        index.putLong(card_offset + CARD_LAST, last);
+        index.putLong(card_offset + CARD_NB_LOST, getNbLost(card) + nb_lost);
+        for (int i = 0; i < CHAIN_SIZE; i++)
+            index.put(card_offset + CARD_CHAIN + i, chain[i]);
+        index.putLong(HEADER_END, end);
+        index.force();
+    }
+
+    /** Visits the records of a card, most recent first */
+    public void forEachRecord(int card, Visitor visitor) throws IOException {
+        byte[] record = new byte[RECORD_SIZE];
+        long entry = index.getLong(cardOffset(card) + CARD_LAST);
+        while (entry != NULL_ENTRY) {
+            MappedByteBuffer segment = getEntry(entry);
+            int pos = segment.position();
+            for (int j = 0; j < RECORD_SIZE; j++)
+                record[j] = segment.get(pos + ENTRY_RECORD + j);
+            if (!visitor.visit(card, segment.getInt(pos + ENTRY_SEQUENCE) & 0xFFFFFFFFL, record))
+                return;
+            entry = segment.getLong(pos + ENTRY_PREVIOUS);
+        }
+    }
+
+    /** Visits the records of all cards, in the order they were archived */
+    public void forEachRecord(Visitor visitor) throws IOException {
+        byte[] record = new byte[RECORD_SIZE];
+        long end = getNbEntries();
+        for (long entry = 0; entry < end; entry++) {
+            MappedByteBuffer segment = getEntry(entry);
+            int pos = segment.position();
+            for (int j = 0; j < RECORD_SIZE; j++)
+                record[j] = segment.get(pos + ENTRY_RECORD + j);
+            if (!visitor.visit(segment.getInt(pos + ENTRY_CARD), segment.getInt(pos + ENTRY_SEQUENCE) & 0xFFFFFFFFL, record))
+                return;
+        }
+    }
+
+    public void close() {
+        for (MappedByteBuffer segment : segments)
+            if (segment != null)
+                segment.force();
+        index.force();
+        segments.clear();
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b & 0xFF));
+        return sb.toString();
+    }
+
+}// end of LogArchive class
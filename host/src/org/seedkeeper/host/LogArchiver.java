@@ -0,0 +1,238 @@
+package org.seedkeeper.host;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * LogArchiver Class
+ * <p>
+ *
+ * Pulls the logs a card recorded since the last pull, and appends them to a
+ * LogArchive where cards are identified by their authentikey (x-coordinate).
+ * <p>
+ *
+ * Logs are read with the signed incremental mode of INS_PRINT_LOGS: the card
+ * returns the logs with a sequence number greater than or equal to the next
+ * sequence number expected by the archive, then its hash chain over all logs.
+ * The chain of the archive is extended with the logs received and compared to
+ * the chain of the card, so that logs altered or missing are detected. When
+ * logs were lost (overwritten on card before they were pulled), the chain
+ * cannot be recomputed and the chain of the card is taken as the new
+ * reference. The signature of the chain by the authentikey is checked by a
+ * ChainVerifier, if one is given.
+ * <p>
+ *
+ * The card is reached through an ApduChannel: a channel to a physical card
+ * must handle PIN verification and the secure channel. Usage:
+ *
+ * <pre>
+ *   LogArchiver archive_dir simulate nb_cards nb_logs   pulls from simulated cards
+ *   LogArchiver archive_dir list [authentikey]           prints the archive or the logs of a card
+ * </pre>
+ */
+public class LogArchiver {
+
+    private static final byte CLA = (byte) 0xB0;
+    private static final byte INS_PRINT_LOGS = (byte) 0xA9;
+    private static final byte INS_EXPORT_AUTHENTIKEY = (byte) 0xAD;
+    private static final byte INS_GET_RESPONSE = (byte) 0xC0;
+    private static final byte PRINT_LOGS_SIGNED = (byte) 0x03;
+    private static final int LOGS_HEADER_SIZE = 14;
+    private static final int SW_NO_ERROR = 0x9000;
+    private static final int SW_BYTES_REMAINING = 0x6100;
+    private static final int SEQUENCE_SIZE = 4;
+    private static final int SIGNED_WINDOW_SIZE = 12;
+
+    /**
+     * Checks the signature of a card over [nb_logs(2b) | sequence(4b) |
+     * nb_lost(4b) | start(2b) | chain(32b)]
+     */
+    public interface ChainVerifier {
+        boolean verify(byte[] authentikey, byte[] signed, byte[] signature);
+    }
+
+    private final LogArchive archive;
+    private final ChainVerifier verifier;
+    private final MessageDigest sha256;
+
+    /**
+     * @param archive
+     *            The archive to append the logs to
+     * @param verifier
+     *            The verifier of the chain signatures, or null to skip the
+     *            check
+     */
+    public LogArchiver(LogArchive archive, ChainVerifier verifier) {
+        this.archive = archive;
+        this.verifier = verifier;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Appends the new logs of a card to the archive.
+     *
+     * @param card
+     *            The channel to the card
+     * @return The number of logs appended
+     * @throws IOException
+     *             If the card fails, or its logs do not match the archive
+     */
+    public int pull(ApduChannel card) throws IOException {
+        byte[] authentikey = getAuthentikey(card);
+        int card_no = archive.addCard(authentikey);
+        long next = archive.getNextSequence(card_no);
+
+        byte[] command = ByteBuffer.allocate(5 + SEQUENCE_SIZE).put(CLA).put(INS_PRINT_LOGS)
+                .put(PRINT_LOGS_SIGNED).put((byte) 0).put((byte) SEQUENCE_SIZE).putInt((int) next).array();
+        ByteBuffer response = ByteBuffer.wrap(transmitChained(card, command));
+        if (response.remaining() < LOGS_HEADER_SIZE)
+            throw new IOException("logs response too short");
+        response.getShort(); // nbtotal
+        response.getShort(); // nbavail
+        int count = response.getShort() & 0xFFFF;
+        long sequence = response.getInt() & 0xFFFFFFFFL;
+        long lost = response.getInt() & 0xFFFFFFFFL;
+        if (sequence < next)
+            throw new IOException("card " + LogArchive.toHex(authentikey) + " is behind the archive");
+        long first = sequence - count;
+        if (first != next + lost || response.remaining() < count * LogArchive.RECORD_SIZE + LogArchive.CHAIN_SIZE + 2)
+            throw new IOException("inconsistent logs response");
+
+        // logs are sent most recent first, and archived oldest first
+        byte[] records = new byte[count * LogArchive.RECORD_SIZE];
+        for (int i = count - 1; i >= 0; i--)
+            response.get(records, i * LogArchive.RECORD_SIZE, LogArchive.RECORD_SIZE);
+        byte[] chain = new byte[LogArchive.CHAIN_SIZE];
+        response.get(chain);
+        byte[] signature = new byte[response.getShort() & 0xFFFF];
+        response.get(signature);
+
+        if (lost == 0 && !Arrays.equals(chain, extendChain(archive.getChain(card_no), first, records, count)))
+            throw new IOException("log chain mismatch for card " + LogArchive.toHex(authentikey));
+        if (verifier != null) {
+            // the window of logs is signed along with the chain, start is 0 in incremental mode
+            byte[] signed = ByteBuffer.allocate(SIGNED_WINDOW_SIZE + LogArchive.CHAIN_SIZE).putShort((short) count)
+                    .putInt((int) sequence).putInt((int) lost).putShort((short) 0).put(chain).array();
+            if (!verifier.verify(authentikey, signed, signature))
+                throw new IOException("wrong log chain signature for card " + LogArchive.toHex(authentikey));
+        }
+        archive.append(card_no, first, records, 0, count, lost, chain);
+        return count;
+    }
+
+    /** Computes chain = SHA256(chain | sequence(4b) | record) over records, oldest first */
+    private byte[] extendChain(byte[] chain, long sequence, byte[] records, int count) {
+        for (int i = 0; i < count; i++) {
+            sha256.update(chain);
+            sha256.update(ByteBuffer.allocate(SEQUENCE_SIZE).putInt((int) (sequence + i)).array());
+            sha256.update(records, i * LogArchive.RECORD_SIZE, LogArchive.RECORD_SIZE);
+            chain = sha256.digest();
+        }
+        return chain;
+    }
+
+    /** Returns the x-coordinate of the authentikey, from [coordx_size(2b) | coordx | sig_size(2b) | sig] */
+    private static byte[] getAuthentikey(ApduChannel card) throws IOException {
+        byte[] command = { CLA, INS_EXPORT_AUTHENTIKEY, 0, 0, 0 };
+        ByteBuffer response = ByteBuffer.wrap(transmitChained(card, command));
+        if (response.remaining() < 2 || response.getShort() != LogArchive.KEY_SIZE
+                || response.remaining() < LogArchive.KEY_SIZE)
+            throw new IOException("wrong authentikey response");
+        byte[] authentikey = new byte[LogArchive.KEY_SIZE];
+        response.get(authentikey);
+        return authentikey;
+    }
+
+    /** Sends a command and collects its response, following GET RESPONSE while SW is 61xx */
+    private static byte[] transmitChained(ApduChannel card, byte[] command) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        while (true) {
+            byte[] response = card.transmit(command);
+            if (response.length < 2)
+                throw new IOException("response too short");
+            int sw = ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+            data.write(response, 0, response.length - 2);
+            if (sw == SW_NO_ERROR)
+                return data.toByteArray();
+            if ((sw & 0xFF00) != SW_BYTES_REMAINING)
+                throw new IOException(String.format("card error 0x%04X", sw));
+            command = new byte[] { 0x00, INS_GET_RESPONSE, 0, 0, (byte) sw };
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: LogArchiver archive_dir simulate nb_cards nb_logs");
+            System.err.println("       LogArchiver archive_dir list [authentikey]");
+            System.err.println("  -Dseedkeeper.segment_entries=n sets the entries per segment of a new archive");
+            System.exit(1);
+        }
+        LogArchive archive = new LogArchive(new File(args[0]),
+                Long.getLong("seedkeeper.segment_entries", LogArchive.DEFAULT_ENTRIES_PER_SEGMENT));
+        try {
+            if (args[1].equals("simulate") && args.length >= 4) {
+                simulate(archive, Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            } else if (args[1].equals("list")) {
+                list(archive, (args.length >= 3) ? args[2] : null);
+            } else {
+                System.err.println("unknown command " + args[1]);
+                System.exit(1);
+            }
+        } finally {
+            archive.close();
+        }
+    }
+
+    /** Pulls the logs of simulated cards, several times while they log */
+    private static void simulate(LogArchive archive, int nb_cards, int nb_logs) throws IOException {
+        LogArchiver archiver = new LogArchiver(archive, null);
+        SimulatedCard[] cards = new SimulatedCard[nb_cards];
+        for (int i = 0; i < nb_cards; i++)
+            cards[i] = new SimulatedCard(100);
+        long total = 0;
+        for (int n = 0; n < nb_logs; n += 50) {
+            for (int i = 0; i < nb_cards; i++) {
+                for (int j = n; j < Math.min(n + 50, nb_logs); j++)
+                    cards[i].addLog((byte) 0xA1, (short) j, (short) -1, (short) SW_NO_ERROR);
+                total += archiver.pull(cards[i]);
+            }
+        }
+        System.out.println("archived " + total + " logs from " + nb_cards + " cards, " + archive.getNbEntries()
+                + " in archive");
+    }
+
+    private static void list(LogArchive archive, String authentikey) throws IOException {
+        LogArchive.Visitor printer = new LogArchive.Visitor() {
+            public boolean visit(int card, long sequence, byte[] record) {
+                ByteBuffer log = ByteBuffer.wrap(record);
+                System.out.println(String.format("card %d seq %d ins 0x%02X id1 %d id2 %d result 0x%04X", card, sequence,
+                        log.get(), log.getShort(), log.getShort(), log.getShort()));
+                return true;
+            }
+        };
+        if (authentikey == null) {
+            for (int card = 0; card < archive.getNbCards(); card++)
+                System.out.println(String.format("card %d %s: %d logs archived, %d lost", card,
+                        LogArchive.toHex(archive.getCardKey(card)), archive.getNbRecords(card), archive.getNbLost(card)));
+            archive.forEachRecord(printer);
+            return;
+        }
+        for (int card = 0; card < archive.getNbCards(); card++) {
+            if (LogArchive.toHex(archive.getCardKey(card)).equalsIgnoreCase(authentikey)) {
+                archive.forEachRecord(card, printer);
+                return;
+            }
+        }
+        System.err.println("unknown card " + authentikey);
+    }
+
+}// end of LogArchiver class
@@ -0,0 +1,144 @@
+package org.seedkeeper.host;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SimulatedCard Class
+ * <p>
+ *
+ * Answers the log commands of a SeedKeeper (export authentikey, print logs in
+ * incremental modes, get response) from a log ring kept in memory, so that
+ * the host tools can be exercised without a card. Logs are numbered and hash
+ * chained like on the card; the chain signature is left empty since the
+ * simulation has no authentikey private key.
+ */
+public class SimulatedCard implements ApduChannel {
+
+    private static final byte INS_PRINT_LOGS = (byte) 0xA9;
+    private static final byte INS_EXPORT_AUTHENTIKEY = (byte) 0xAD;
+    private static final byte INS_GET_RESPONSE = (byte) 0xC0;
+    private static final int LOGS_HEADER_SIZE = 14;
+    private static final int CHAIN_CHUNK_SIZE = 240;
+    private static final int SW_NO_ERROR = 0x9000;
+    private static final int SW_BYTES_REMAINING = 0x6100;
+    private static final int SW_WRONG_P1P2 = 0x6B00;
+    private static final int SW_INS_NOT_SUPPORTED = 0x6D00;
+    private static final int SW_CONDITIONS_NOT_SATISFIED = 0x6985;
+    private static final int SW_INVALID_PARAMETER = 0x9C0F;
+
+    private final byte[] authentikey = new byte[LogArchive.KEY_SIZE];
+    private final int capacity;
+    /** records in the ring, oldest first */
+    private final List<byte[]> ring = new ArrayList<byte[]>();
+    private long sequence;
+    private byte[] chain = new byte[LogArchive.CHAIN_SIZE];
+    private final MessageDigest sha256;
+
+    /** pending chained response */
+    private byte[] stream;
+    private int stream_pos;
+
+    /**
+     * @param capacity
+     *            The number of records kept in the ring
+     */
+    public SimulatedCard(int capacity) {
+        this.capacity = capacity;
+        new SecureRandom().nextBytes(authentikey);
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public byte[] getAuthentikey() {
+        return authentikey.clone();
+    }
+
+    /** Returns the sequence number of the next log */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /** Commits a log, dropping the oldest one if the ring is full */
+    public void addLog(byte ins, short id1, short id2, short result) {
+        byte[] record = ByteBuffer.allocate(LogArchive.RECORD_SIZE).put(ins).putShort(id1).putShort(id2)
+                .putShort(result).array();
+        sha256.update(chain);
+        sha256.update(ByteBuffer.allocate(4).putInt((int) sequence).array());
+        chain = sha256.digest(record);
+        if (ring.size() == capacity)
+            ring.remove(0);
+        ring.add(record);
+        sequence++;
+    }
+
+    public byte[] transmit(byte[] apdu) {
+        byte ins = apdu[1];
+        if (ins == INS_GET_RESPONSE) {
+            if (stream == null)
+                return status(SW_CONDITIONS_NOT_SATISFIED);
+            return sendChunk();
+        }
+        stream = null;
+        if (ins == INS_EXPORT_AUTHENTIKEY) {
+            ByteBuffer response = ByteBuffer.allocate(2 + LogArchive.KEY_SIZE + 2 + 2);
+            response.putShort((short) LogArchive.KEY_SIZE).put(authentikey).putShort((short) 0);
+            response.putShort((short) SW_NO_ERROR);
+            return response.array();
+        }
+        if (ins != INS_PRINT_LOGS)
+            return status(SW_INS_NOT_SUPPORTED);
+        byte p1 = apdu[2];
+        if (p1 != 0x02 && p1 != 0x03)
+            return status(SW_WRONG_P1P2);
+        if (apdu.length < 9)
+            return status(SW_INVALID_PARAMETER);
+        long since = ByteBuffer.wrap(apdu, 5, 4).getInt() & 0xFFFFFFFFL;
+
+        // same counts as Logger.getNbLogsSince()
+        long count = 0;
+        long lost = 0;
+        if (since <= sequence) {
+            count = Math.min(sequence - since, ring.size());
+            lost = sequence - since - count;
+        }
+        int trailer = (p1 == 0x03) ? LogArchive.CHAIN_SIZE + 2 : 0;
+        ByteBuffer buffer = ByteBuffer.allocate(LOGS_HEADER_SIZE + (int) count * LogArchive.RECORD_SIZE + trailer);
+        buffer.putShort((short) Math.min(sequence, 0x7FFF)).putShort((short) ring.size()).putShort((short) count);
+        buffer.putInt((int) sequence).putInt((int) lost);
+        for (int i = 0; i < count; i++)
+            buffer.put(ring.get(ring.size() - 1 - i));
+        if (p1 == 0x03)
+            buffer.put(chain).putShort((short) 0);
+        stream = buffer.array();
+        stream_pos = 0;
+        return sendChunk();
+    }
+
+    private byte[] sendChunk() {
+        int size = Math.min(CHAIN_CHUNK_SIZE, stream.length - stream_pos);
+        ByteBuffer response = ByteBuffer.allocate(size + 2);
+        response.put(stream, stream_pos, size);
+        stream_pos += size;
+        int remaining = Math.min(CHAIN_CHUNK_SIZE, stream.length - stream_pos);
+        if (remaining == 0) {
+            stream = null;
+            response.putShort((short) SW_NO_ERROR);
+        } else {
+            response.putShort((short) (SW_BYTES_REMAINING | remaining));
+        }
+        return response.array();
+    }
+
+    private static byte[] status(int sw) {
+        return new byte[] { (byte) (sw >> 8), (byte) sw };
+    }
+
+}// end of SimulatedCard class
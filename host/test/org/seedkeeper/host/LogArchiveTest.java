@@ -0,0 +1,239 @@
+package org.seedkeeper.host;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * LogArchiveTest Class
+ * <p>
+ *
+ * Checks the log archive and the archiver against a simulated card: appends,
+ * reopening, logs lost on card and verification of the hash chain.
+ */
+public class LogArchiveTest {
+
+    private static final short SW_NO_ERROR = (short) 0x9000;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("logarchive").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    private static byte[] record(int i) {
+        return ByteBuffer.allocate(LogArchive.RECORD_SIZE).put((byte) 0xA1).putShort((short) i).putShort((short) -1)
+                .putShort(SW_NO_ERROR).array();
+    }
+
+    private static byte[] key(int n) {
+        byte[] key = new byte[LogArchive.KEY_SIZE];
+        key[0] = (byte) n;
+        return key;
+    }
+
+    /** Returns the id1 of the records of a card, most recent first */
+    private static List<Integer> ids(LogArchive archive, int card) throws IOException {
+        final List<Integer> ids = new ArrayList<Integer>();
+        archive.forEachRecord(card, new LogArchive.Visitor() {
+            public boolean visit(int card, long sequence, byte[] record) {
+                ids.add((int) ByteBuffer.wrap(record).getShort(1));
+                return true;
+            }
+        });
+        return ids;
+    }
+
+    @Test
+    public void appendAndReopen() throws IOException {
+        byte[] chain = new byte[LogArchive.CHAIN_SIZE];
+        chain[0] = 0x42;
+        LogArchive archive = new LogArchive(dir, 4);
+        int card0 = archive.addCard(key(0));
+        int card1 = archive.addCard(key(1));
+        byte[] records = new byte[10 * LogArchive.RECORD_SIZE];
+        for (int i = 0; i < 10; i++)
+            System.arraycopy(record(i), 0, records, i * LogArchive.RECORD_SIZE, LogArchive.RECORD_SIZE);
+        archive.append(card0, 0, records, 0, 6, 0, chain);
+        archive.append(card1, 0, records, 0, 3, 0, chain);
+        archive.append(card0, 6, records, 6 * LogArchive.RECORD_SIZE, 4, 0, chain);
+        archive.close();
+
+        // entries span several segments of 4 entries
+        archive = new LogArchive(dir);
+        try {
+            assertEquals(2, archive.getNbCards());
+            assertEquals(card1, archive.findCard(key(1)));
+            assertEquals(-1, archive.findCard(key(2)));
+            assertEquals(13, archive.getNbEntries());
+            assertEquals(10, archive.getNextSequence(card0));
+            assertEquals(10, archive.getNbRecords(card0));
+            assertEquals(3, archive.getNbRecords(card1));
+            assertArrayEquals(chain, archive.getChain(card0));
+            assertEquals(java.util.Arrays.asList(9, 8, 7, 6, 5, 4, 3, 2, 1, 0), ids(archive, card0));
+            assertEquals(java.util.Arrays.asList(2, 1, 0), ids(archive, card1));
+
+            final List<Integer> cards = new ArrayList<Integer>();
+            archive.forEachRecord(new LogArchive.Visitor() {
+                public boolean visit(int card, long sequence, byte[] record) {
+                    cards.add(card);
+                    return true;
+                }
+            });
+            assertEquals(java.util.Arrays.asList(0, 0, 0, 0, 0, 0, 1, 1, 1, 0, 0, 0, 0), cards);
+            assertTrue(new File(dir, "segment-00003").length() <= 4 * 24);
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void segmentsGrowOnDemand() throws IOException {
+        LogArchive archive = new LogArchive(dir);
+        try {
+            int card = archive.addCard(key(0));
+            archive.append(card, 0, record(0), 0, 1, 0, new byte[LogArchive.CHAIN_SIZE]);
+            long size = new File(dir, "segment-00000").length();
+            assertTrue(size < LogArchive.DEFAULT_ENTRIES_PER_SEGMENT * 24);
+
+            byte[] records = new byte[10000 * LogArchive.RECORD_SIZE];
+            archive.append(card, 1, records, 0, 10000, 0, new byte[LogArchive.CHAIN_SIZE]);
+            assertTrue(new File(dir, "segment-00000").length() >= 10001 * 24);
+            assertEquals(10001, archive.getNbRecords(card));
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void pullAndLostLogs() throws IOException {
+        LogArchive archive = new LogArchive(dir);
+        try {
+            LogArchiver archiver = new LogArchiver(archive, null);
+            SimulatedCard card = new SimulatedCard(10);
+            for (int i = 0; i < 5; i++)
+                card.addLog((byte) 0xA1, (short) i, (short) -1, SW_NO_ERROR);
+            assertEquals(5, archiver.pull(card));
+            assertEquals(0, archiver.pull(card));
+
+            // 15 logs are overwritten in the ring before the next pull
+            for (int i = 5; i < 30; i++)
+                card.addLog((byte) 0xA1, (short) i, (short) -1, SW_NO_ERROR);
+            assertEquals(10, archiver.pull(card));
+            int n = archive.findCard(card.getAuthentikey());
+            assertEquals(15, archive.getNbLost(n));
+            assertEquals(15, archive.getNbRecords(n));
+            assertEquals(30, archive.getNextSequence(n));
+            assertEquals(Integer.valueOf(29), ids(archive, n).get(0));
+            assertEquals(Integer.valueOf(4), ids(archive, n).get(10));
+
+            // the chain of the card is the new reference, and is checked again
+            card.addLog((byte) 0xA1, (short) 30, (short) -1, SW_NO_ERROR);
+            assertEquals(1, archiver.pull(card));
+            assertEquals(16, archive.getNbRecords(n));
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void alteredLogsAreDetected() throws IOException {
+        LogArchive archive = new LogArchive(dir);
+        try {
+            final SimulatedCard card = new SimulatedCard(100);
+            card.addLog((byte) 0xA1, (short) 0, (short) -1, SW_NO_ERROR);
+            LogArchiver archiver = new LogArchiver(archive, null);
+            archiver.pull(card);
+
+            card.addLog((byte) 0xA1, (short) 1, (short) -1, SW_NO_ERROR);
+            ApduChannel tampered = new ApduChannel() {
+                public byte[] transmit(byte[] apdu) throws IOException {
+                    byte[] response = card.transmit(apdu);
+                    if (apdu[1] == (byte) 0xA9)
+                        response[14 + 1] ^= 0x01; // id1 of the first log
+                    return response;
+                }
+            };
+            try {
+                archiver.pull(tampered);
+                fail("altered log archived");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().startsWith("log chain mismatch"));
+            }
+            int n = archive.findCard(card.getAuthentikey());
+            assertEquals(1, archive.getNbRecords(n));
+            assertEquals(1, archiver.pull(card));
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void signedWindow() throws IOException {
+        LogArchive archive = new LogArchive(dir);
+        try {
+            final SimulatedCard card = new SimulatedCard(2);
+            for (int i = 0; i < 5; i++)
+                card.addLog((byte) 0xA1, (short) i, (short) -1, SW_NO_ERROR);
+            final List<byte[]> signed = new ArrayList<byte[]>();
+            LogArchiver archiver = new LogArchiver(archive, new LogArchiver.ChainVerifier() {
+                public boolean verify(byte[] authentikey, byte[] data, byte[] signature) {
+                    assertArrayEquals(card.getAuthentikey(), authentikey);
+                    signed.add(data);
+                    return true;
+                }
+            });
+            archiver.pull(card);
+            int n = archive.findCard(card.getAuthentikey());
+            // [nb_logs(2b) | sequence(4b) | nb_lost(4b) | start(2b) | chain(32b)]
+            ByteBuffer data = ByteBuffer.wrap(signed.get(0));
+            assertEquals(12 + LogArchive.CHAIN_SIZE, data.remaining());
+            assertEquals(2, data.getShort());
+            assertEquals(5, data.getInt());
+            assertEquals(3, data.getInt());
+            assertEquals(0, data.getShort());
+            byte[] chain = new byte[LogArchive.CHAIN_SIZE];
+            data.get(chain);
+            assertArrayEquals(archive.getChain(n), chain);
+
+            LogArchiver rejecting = new LogArchiver(archive, new LogArchiver.ChainVerifier() {
+                public boolean verify(byte[] authentikey, byte[] data, byte[] signature) {
+                    return false;
+                }
+            });
+            card.addLog((byte) 0xA1, (short) 5, (short) -1, SW_NO_ERROR);
+            try {
+                rejecting.pull(card);
+                fail("wrong signature accepted");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().startsWith("wrong log chain signature"));
+            }
+            assertEquals(5, archive.getNextSequence(n));
+        } finally {
+            archive.close();
+        }
+    }
+
+}// end of LogArchiveTest class
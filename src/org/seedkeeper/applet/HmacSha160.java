@@ -22,6 +22,7 @@ package org.seedkeeper.applet;
 
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
+import javacard.framework.Util;
 import javacard.security.MessageDigest;
 
 // very limited Hmac-SHA160 implementation
@@ -31,6 +32,7 @@ public class HmacSha160 {
     public static final short BLOCKSIZE=64; // 64 bytes 
     public static final short HASHSIZE=20;
     public static final short MAXMSGSIZE=192; 
+    public static final short CTX_SIZE=2*BLOCKSIZE; // keyed context: [inner pad | outer pad]
     private static byte[] data;
     
     
@@ -77,4 +79,47 @@ public class HmacSha160 {
         return HASHSIZE;
     }   
     
+    /**
+     * Derives the keyed context [key^0x36 | key^0x5c] of a key, to be reused for 
+     * all the messages MACed with this key.
+     * MessageDigest cannot export its state after the pad is absorbed, so the pads 
+     * are stored and hashed again, but no longer rebuilt from the key for each message. 
+     */
+    public static void setKey(
+            byte[] key, short key_offset, short key_length, 
+            byte[] ctx, short ctx_offset){
+        
+        if (key_length>BLOCKSIZE || key_length<0){
+            ISOException.throwIt(SeedKeeper.SW_HMAC_UNSUPPORTED_KEYSIZE); // don't accept keys bigger than block size 
+        }
+        for (short i=0; i<key_length; i++){
+            ctx[(short)(ctx_offset+i)]= (byte) (key[(short)(key_offset+i)] ^ (0x36));
+            ctx[(short)(ctx_offset+BLOCKSIZE+i)]= (byte) (key[(short)(key_offset+i)] ^ (0x5c));
+        }
+        Util.arrayFillNonAtomic(ctx, (short)(ctx_offset+key_length), (short)(BLOCKSIZE-key_length), (byte)0x36);
+        Util.arrayFillNonAtomic(ctx, (short)(ctx_offset+BLOCKSIZE+key_length), (short)(BLOCKSIZE-key_length), (byte)0x5c);
+    }
+    
+    /**
+     * Computes the HMAC of a message with a keyed context from setKey().
+     * The message is hashed in place, so its size is not limited to MAXMSGSIZE,
+     * but it must not overlap the buffer given to init().
+     */
+    public static short computeHmacSha160(
+            byte[] ctx, short ctx_offset,
+            byte[] message, short message_offset, short message_length,
+            byte[] mac, short mac_offset){
+        
+        // compute inner hash
+        sha160.reset();
+        sha160.update(ctx, ctx_offset, BLOCKSIZE);
+        sha160.doFinal(message, message_offset, message_length, data, (short)0);
+        
+        // compute outer hash
+        sha160.reset();
+        sha160.update(ctx, (short)(ctx_offset+BLOCKSIZE), BLOCKSIZE);
+        sha160.doFinal(data, (short)0, HASHSIZE, mac, mac_offset);
+        return HASHSIZE;
+    }
+    
 }
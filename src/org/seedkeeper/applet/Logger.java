@@ -2,6 +2,8 @@ package org.seedkeeper.applet;
 
 import javacard.framework.Util;
 import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.security.MessageDigest;
 
 
 
@@ -21,82 +23,376 @@ import javacard.framework.ISOException;
  *   short result: whether operation was successful or exception code
  * </pre>
  * 
+ * Records are returned in this fixed format (LOG_SIZE bytes), but are stored
+ * in a compact variable-length format, so that the ring holds more history:
+ * 
+ * <pre>
+ *   [tag(1b) | ins(0-1b) | id1(0-2b) | id2(0-2b) | result(0-2b) | tag(1b)]
+ *   tag bits 7-5: index of ins in LOG_INS_TABLE, or 7 if ins follows
+ *   tag bits 4-3: id1 is -1 (00, omitted), a byte (01) or a short (10)
+ *   tag bits 2-1: id2 is -1 (00, omitted), a byte (01) or a short (10)
+ *   tag bit 0: result is 0x9000 (1, omitted) or follows (0)
+ * </pre>
+ * 
+ * The tag is repeated at both ends of the record, so that the ring can be
+ * walked backwards (from the most recent record) and forwards (to drop the
+ * oldest records). A record may wrap around the end of the array.
+ * 
+ * Each record has an implicit 32-bit sequence number: records are numbered
+ * in commit order from 0, so the most recent record is (sequence-1), where
+ * sequence is the persistent counter returned by getSequence().
+ * 
+ * Committed records are also folded in a hash chain, so that logs archived by
+ * a host are tamper-evident once the chain head is signed:
+ * 
+ * <pre>
+ *   chain = SHA256(chain | sequence(4b) | record(LOG_SIZE bytes, fixed format))
+ * </pre>
+ * 
+ * where the chain is initially zero and sequence is the record's number.
+ * 
+ * Committed records also update saturating success/failure counters per
+ * operation (see STATS_TABLE), which keep the history lost when the ring
+ * rotates. Operations that are not logged may be counted with
+ * countOperation().
+ * 
+ * Records are staged in RAM by createLog() and updateLog(), and written once
+ * to the ring by commitLog() when the command completes. While a record is
+ * staged, a persistent pending marker holds its instruction and slot: if the
+ * command is torn, recoverLog() writes the instruction with result 0x0000 in
+ * that slot on next selection.
+ * 
  * todo: method to add timestamp from specific APDU?
  * 
  */
 public class Logger {
     
     public final static byte LOG_SIZE = (byte) (7);
+    /**
+     * Maximum number of records in the ring, in fixed or compact format, so that
+     * all of them fit in a short once expanded to LOG_SIZE, with room for the
+     * header and trailer of a response (see printLogs() in the applet)
+     */
+    public final static short MAX_NBRECORDS = (short) ((short)(0x7FFF - 0x100) / LOG_SIZE);
     private final static byte LOG_INS = (byte) 0; 
     private final static byte LOG_ID1 = (byte) 1; 
     private final static byte LOG_ID2 = (byte) 3; 
     private final static byte LOG_RES = (byte) 5; 
     
+    /** Compact record format */
+    private final static byte MAX_ENCODED_SIZE = (byte) 9;
+    private final static byte TAG_INS_SHIFT = (byte) 5;
+    private final static byte TAG_INS_LITERAL = (byte) 7;
+    private final static byte TAG_ID1_SHIFT = (byte) 3;
+    private final static byte TAG_ID2_SHIFT = (byte) 1;
+    private final static byte TAG_ID_NONE = (byte) 0;
+    private final static byte TAG_ID_BYTE = (byte) 1;
+    private final static byte TAG_ID_SHORT = (byte) 2;
+    private final static byte TAG_RES_OK = (byte) 0x01;
+    /** Most frequently logged instructions, encoded in the tag */
+    private static final byte[] LOG_INS_TABLE = {(byte)0xA0, (byte)0xAE, (byte)0xA1, (byte)0xA2, (byte)0x42, (byte)0x44, (byte)0x46};
+    
+    /**
+     * Operations counted in the statistics, as pairs [ins | secure]: secure
+     * operations are those logged with a pubkey id in id2.
+     */
+    private static final byte[] STATS_TABLE = {
+            (byte)0xA0, 0, (byte)0xAE, 0, (byte)0xA1, 0, (byte)0xA1, 1, (byte)0xA2, 0, (byte)0xA2, 1, 
+            (byte)0xAB, 1, (byte)0xAC, 1, (byte)0x42, 0, (byte)0x44, 0, (byte)0x46, 0, (byte)0x81, 0, (byte)0xFF, 0};
+    public final static byte STATS_NB_ENTRIES = (byte)(13);
+    /** Size of one entry in getStatistics(): [ins(1b) | secure(1b) | nb_success(2b) | nb_failure(2b)] **/
+    public final static byte STATS_ENTRY_SIZE = (byte) 6;
+    
     public final static short SW_LOGGER_ERROR = (short) 0x9C0A;
     
+    /** Filter flags for getRecordsBefore() */
+    public final static byte FILTER_INS = (byte) 0x01;
+    public final static byte FILTER_ID1 = (byte) 0x02;
+    public final static byte FILTER_ID2 = (byte) 0x04;
+    public final static byte FILTER_SUCCESS = (byte) 0x08;
+    public final static byte FILTER_ERROR = (byte) 0x10;
+    /** filter: [flags(1b) | ins(1b) | id1(2b) | id2(2b)] */
+    public final static byte FILTER_SIZE = (byte) 6;
+    private final static byte FILTER_FLAGS = (byte) 0;
+    private final static byte FILTER_VALUES = (byte) 1; // values at FILTER_VALUES+LOG_INS/ID1/ID2
+    
     /** The array storing the logs **/
     private byte[] logs;
     
-    /** index to last log */
+    /** offset following the most recent record */
     private short head;
+    /** offset of the oldest record */
+    private short tail;
+    /** bytes used by records & number of records in the ring */
+    private short used;
+    private short nbavail_logs;
     
     /** number of logs **/
     private short nbtotal_logs;
-    //private short nbavail_logs; // todo: remove?
+    /** sequence number of the next log (32-bit, big endian) **/
+    private byte[] sequence;
+    public final static byte SEQUENCE_SIZE = (byte) 4;
+    /** hash chain over all records committed **/
+    private byte[] chain;
+    public final static byte CHAIN_SIZE = (byte) 32;
+    private MessageDigest sha256;
+    /** success & failure counters for each entry of STATS_TABLE **/
+    private short[] stats;
     private short LOGS_SIZE;
     
-    /** Iterator on logs. Stores the offset of the last retrieved log record **/
-    private short it;
+    
+    /** Record staged for the current command (ins is 0 if none) **/
+    private byte[] staged;
+    
+    /** Working area to encode a record, compute the chain & locate a cursor **/
+    private byte[] encoded;
+    private byte[] next_chain;
+    private byte[] work;
+    
+    /** Pending marker: slot (or NULL_SLOT) and instruction of the staged record **/
+    private final static short NULL_SLOT = (short) -1;
+    private short pending_slot;
+    private byte pending_ins;
     
     /**
      * Constructor for the Logger class.
      * 
-     * @param mem_size
-     *            The size (in byte) of memory allocated
+     * @param nb_records
+     *            The number of records in fixed format that fit in the
+     *            memory allocated (more fit in compact format, up to
+     *            MAX_NBRECORDS)
+     * @param digest
+     *            A SHA-256 MessageDigest instance for the hash chain
      */
-    public Logger(short nb_records) {
+    public Logger(short nb_records, MessageDigest digest) {
         LOGS_SIZE= (short)(nb_records*LOG_SIZE);
+        if (LOGS_SIZE<MAX_ENCODED_SIZE)
+            LOGS_SIZE= MAX_ENCODED_SIZE; // ring must hold any record
         logs= new byte[LOGS_SIZE];
         head = (short)0;
+        tail = (short)0;
+        used = (short)0;
+        nbavail_logs= (short)0;
         nbtotal_logs= (short)0;
-        //nbavail_logs= (short)0;
-        it=(short)0;
+        sequence= new byte[SEQUENCE_SIZE];
+        chain= new byte[CHAIN_SIZE];
+        sha256= digest;
+        stats= new short[(short)(2*STATS_NB_ENTRIES)];
+        staged= JCSystem.makeTransientByteArray(LOG_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        encoded= JCSystem.makeTransientByteArray(MAX_ENCODED_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        next_chain= JCSystem.makeTransientByteArray(CHAIN_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        work= JCSystem.makeTransientByteArray(SEQUENCE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        pending_slot= NULL_SLOT;
     }
     
+    /**
+     * Stages a log record for the current command. A result of 0x0000 means
+     * the result is not known yet (see commitLog()). A record still staged by
+     * a previous command is committed first.
+     */
     public void createLog(byte ins, short id1, short id2, short res){
+        if (isPending())
+            commitLog((short)0x0000);
+        // arm the pending marker: slot last, as it validates the marker
+        pending_ins= ins;
+        pending_slot= head;
+        this.setLog(staged, (short)0, ins, id1, id2, res);
+    }
+    
+    /** Updates the staged record (in RAM only) */
+    public void updateLog(byte ins, short id1, short id2, short res){
+        if (!isPending())
+            createLog(ins, id1, id2, res);
+        else
+            this.setLog(staged, (short)0, ins, id1, id2, res);
+    }
+    
+    /** Returns true if a record is staged and not committed yet */
+    public boolean isPending(){
+        return (staged[LOG_INS]!=(byte)0);
+    }
+    
+    /**
+     * Writes the staged record, if any, to the ring.
+     * 
+     * @param res
+     *            The result recorded if the staged result is still 0x0000
+     *            (e.g. the status word of the command)
+     */
+    public void commitLog(short res){
+        if (!isPending())
+            return;
+        if (Util.getShort(staged, LOG_RES)==(short)0)
+            Util.setShort(staged, LOG_RES, res);
+        appendLog(staged, (short)0);
+        staged[LOG_INS]= (byte)0;
+    }
+    
+    /**
+     * Recovers from a command torn while its record was staged: the pending
+     * instruction is logged with result 0x0000. Must be called on selection.
+     */
+    public void recoverLog(){
+        staged[LOG_INS]= (byte)0;
+        if (pending_slot==NULL_SLOT)
+            return;
+        if (pending_slot!=head){
+            // record was published before the marker could be cleared
+            pending_slot= NULL_SLOT;
+            return;
+        }
+        this.setLog(staged, (short)0, pending_ins, (short)-1, (short)-1, (short)0x0000);
+        appendLog(staged, (short)0);
+        staged[LOG_INS]= (byte)0;
+    }
+    
+    /** Encodes a record and writes it at head, dropping the oldest records as needed */
+    private void appendLog(byte[] record, short offset){
+        short size= encodeLog(record, offset, encoded, (short)0);
+        sha256.reset();
+        sha256.update(chain, (short)0, CHAIN_SIZE);
+        sha256.update(sequence, (short)0, SEQUENCE_SIZE);
+        sha256.doFinal(record, offset, LOG_SIZE, next_chain, (short)0);
         
-        this.setLog(ins, id1, id2, res);
-        
-        // update head so it that always points to an available slot
-        head= (short) ( ((short)(head+LOG_SIZE)) % (LOGS_SIZE) );
+        // ring pointers, record, sequence & chain must stay in step
+        JCSystem.beginTransaction();
+        while (((short)(LOGS_SIZE-used) < size) || (nbavail_logs >= MAX_NBRECORDS)){
+            short dropped= getEncodedSize(logs[tail]);
+            tail= (short)((short)(tail+dropped)%LOGS_SIZE);
+            used-= dropped;
+            nbavail_logs--;
+        }
+        // write, possibly wrapping around
+        short n= (short)(LOGS_SIZE-head);
+        if (n>size)
+            n= size;
+        Util.arrayCopy(encoded, (short)0, logs, head, n);
+        if (n<size)
+            Util.arrayCopy(encoded, n, logs, (short)0, (short)(size-n));
+        head= (short)((short)(head+size)%LOGS_SIZE);
+        used+= size;
+        nbavail_logs++;
         // update nbtotal_logs
         if (nbtotal_logs<0x7FFF)
             nbtotal_logs++;
+        Biginteger.add1_carry(sequence, (short)0, SEQUENCE_SIZE);
+        Util.arrayCopy(next_chain, (short)0, chain, (short)0, CHAIN_SIZE);
+        countOperation(record[(short)(offset+LOG_INS)], Util.getShort(record, (short)(offset+LOG_ID2)), 
+                Util.getShort(record, (short)(offset+LOG_RES)));
+        pending_slot= NULL_SLOT;
+        JCSystem.commitTransaction();
     }
     
-    public void updateLog(byte ins, short id1, short id2, short res){
+    /** Returns the size of an encoded record from its tag */
+    private static short getEncodedSize(byte tag){
+        short size= (short)2;
+        if ((byte)((tag>>TAG_INS_SHIFT)&0x07)==TAG_INS_LITERAL)
+            size++;
+        size+= (short)((tag>>TAG_ID1_SHIFT)&0x03);
+        size+= (short)((tag>>TAG_ID2_SHIFT)&0x03);
+        if ((tag & TAG_RES_OK)==0)
+            size+=2;
+        return size;
+    }
+    
+    /**
+     * Encodes a record (LOG_SIZE bytes) in compact format
+     * @return the size of the encoded record
+     */
+    private static short encodeLog(byte[] record, short record_offset, byte[] buffer, short offset){
+        byte ins= record[(short)(record_offset+LOG_INS)];
+        short pos= (short)(offset+1);
+        byte tag= (byte)(TAG_INS_LITERAL<<TAG_INS_SHIFT);
+        for (byte i=0; i<(byte)LOG_INS_TABLE.length; i++){
+            if (LOG_INS_TABLE[i]==ins){
+                tag= (byte)(i<<TAG_INS_SHIFT);
+                break;
+            }
+        }
+        if (tag==(byte)(TAG_INS_LITERAL<<TAG_INS_SHIFT))
+            buffer[pos++]= ins;
         
-        // go back to last log
-        short next= head;
-        // head= (short) ( (head-LOG_SIZE)%(LOGS_SIZE) ); //TODO: check correctness?
-        if (head>=LOG_SIZE)
-            head= (short)(head-LOG_SIZE);
-        else
-            head= (short)(LOGS_SIZE-LOG_SIZE);
+        for (byte field= LOG_ID1; field<=LOG_ID2; field+=2){
+            short id= Util.getShort(record, (short)(record_offset+field));
+            byte mode= TAG_ID_NONE;
+            if (id==(short)-1){
+                mode= TAG_ID_NONE;
+            }else if ((id>=0) && (id<=0xFF)){
+                mode= TAG_ID_BYTE;
+                buffer[pos++]= (byte)id;
+            }else{
+                mode= TAG_ID_SHORT;
+                pos= Util.setShort(buffer, pos, id);
+            }
+            tag|= (byte)(mode << ((field==LOG_ID1) ? TAG_ID1_SHIFT : TAG_ID2_SHIFT));
+        }
         
-        // update log
-        this.setLog(ins, id1, id2, res);
+        short res= Util.getShort(record, (short)(record_offset+LOG_RES));
+        if (res==(short)0x9000)
+            tag|= TAG_RES_OK;
+        else
+            pos= Util.setShort(buffer, pos, res);
         
-        // forward to next log
-        head=next;
+        buffer[offset]= tag;
+        buffer[pos++]= tag;
+        return (short)(pos-offset);
     }
     
-    private void setLog(byte ins, short id1, short id2, short res){
-        // fill slot currently indexed in head
-        logs[(short)(head+LOG_INS)]= ins;
-        Util.setShort(logs, (short)(head+LOG_ID1), id1);
-        Util.setShort(logs, (short)(head+LOG_ID2), id2);
-        Util.setShort(logs, (short)(head+LOG_RES), res);
+    /** Returns the byte at offset pos of the ring, modulo its size */
+    private byte getLogByte(short pos){
+        if (pos>=LOGS_SIZE)
+            pos-= LOGS_SIZE;
+        return logs[pos];
+    }
+    
+    /** Returns the offset of the record preceding (older than) the one at pos */
+    private short getPreviousOffset(short pos){
+        short prev= (short)(pos-1);
+        if (prev<0)
+            prev+= LOGS_SIZE;
+        prev= (short)(pos-getEncodedSize(logs[prev]));
+        if (prev<0)
+            prev+= LOGS_SIZE;
+        return prev;
+    }
+    
+    /**
+     * Decodes the record at offset pos in the ring into the fixed format
+     * (LOG_SIZE bytes)
+     */
+    private void decodeLog(short pos, byte[] buffer, short offset){
+        byte tag= logs[pos];
+        pos++;
+        byte ins_index= (byte)((tag>>TAG_INS_SHIFT)&0x07);
+        if (ins_index==TAG_INS_LITERAL){
+            buffer[(short)(offset+LOG_INS)]= getLogByte(pos);
+            pos++;
+        }else{
+            buffer[(short)(offset+LOG_INS)]= LOG_INS_TABLE[ins_index];
+        }
+        for (byte field= LOG_ID1; field<=LOG_ID2; field+=2){
+            byte mode= (byte)((tag >> ((field==LOG_ID1) ? TAG_ID1_SHIFT : TAG_ID2_SHIFT)) & 0x03);
+            short id= (short)-1;
+            if (mode==TAG_ID_BYTE){
+                id= (short)(getLogByte(pos)&0xFF);
+                pos++;
+            }else if (mode==TAG_ID_SHORT){
+                id= Util.makeShort(getLogByte(pos), getLogByte((short)(pos+1)));
+                pos+=2;
+            }
+            Util.setShort(buffer, (short)(offset+field), id);
+        }
+        short res= (short)0x9000;
+        if ((tag & TAG_RES_OK)==0)
+            res= Util.makeShort(getLogByte(pos), getLogByte((short)(pos+1)));
+        Util.setShort(buffer, (short)(offset+LOG_RES), res);
+    }
+    
+    private void setLog(byte[] buffer, short offset, byte ins, short id1, short id2, short res){
+        buffer[(short)(offset+LOG_INS)]= ins;
+        Util.setShort(buffer, (short)(offset+LOG_ID1), id1);
+        Util.setShort(buffer, (short)(offset+LOG_ID2), id2);
+        Util.setShort(buffer, (short)(offset+LOG_RES), res);
     }
     
     //Deprecated - to remove?
@@ -124,60 +420,234 @@ public class Logger {
 //        return base;
 //    }
     
+    /** Returns the total number of logs (saturates at 0x7FFF) */
+    public short getNbTotalLogs() {
+        return nbtotal_logs;
+    }
+    
+    /** Returns the number of records currently held in the ring */
+    public short getNbAvailLogs() {
+        return nbavail_logs;
+    }
+    
+    /** 
+     * Copies the sequence number of the next log (i.e. the number of logs ever written).
+     * The most recent record has sequence number (sequence-1).
+     */
+    public void getSequence(byte[] buffer, short offset) {
+        Util.arrayCopyNonAtomic(sequence, (short)0, buffer, offset, SEQUENCE_SIZE);
+    }
+    
+    /**
+     * Increments the success (result 0x9000) or failure counter of an
+     * operation, if it is counted. Counters saturate at 0xFFFF.
+     * 
+     * @param ins
+     *            The instruction of the operation
+     * @param id2
+     *            The pubkey id for a secure operation, or -1
+     * @param result
+     *            The status word of the operation
+     */
+    public void countOperation(byte ins, short id2, short result){
+        byte secure= (id2==(short)-1) ? (byte)0 : (byte)1;
+        for (short i=(short)0; i<STATS_NB_ENTRIES; i++){
+            if (STATS_TABLE[(short)(2*i)]==ins && STATS_TABLE[(short)(2*i+1)]==secure){
+                short index= (short)(2*i);
+                if (result!=(short)0x9000)
+                    index++;
+                if (stats[index]!=(short)0xFFFF)
+                    stats[index]++;
+                return;
+            }
+        }
+    }
+    
     /**
-     * Resets the objects iterator and retrieves the information record of the
-     * first object, if any.
-     * <p>
+     * Copies the counters of all the operations counted.
      * 
      * @param buffer
-     *            The byte array into which the record will be copied
+     *            The byte array into which the counters will be copied:
+     *            STATS_NB_ENTRIES entries of [ins(1b) | secure(1b) | nb_success(2b) | nb_failure(2b)]
      * @param offset
-     *            The offset in buffer[] at which the record will be copied
-     * @return True if an object was found. False if there are no objects.
+     *            The offset in buffer[] at which the counters will be copied
+     * @return The number of bytes copied
+     */
+    public short getStatistics(byte[] buffer, short offset){
+        for (short i=(short)0; i<STATS_NB_ENTRIES; i++){
+            buffer[offset++]= STATS_TABLE[(short)(2*i)];
+            buffer[offset++]= STATS_TABLE[(short)(2*i+1)];
+            offset= Util.setShort(buffer, offset, stats[(short)(2*i)]);
+            offset= Util.setShort(buffer, offset, stats[(short)(2*i+1)]);
+        }
+        return (short)(STATS_NB_ENTRIES*STATS_ENTRY_SIZE);
+    }
+    
+    /** Copies the hash chain over all records committed so far (CHAIN_SIZE bytes) */
+    public void getChain(byte[] buffer, short offset) {
+        Util.arrayCopyNonAtomic(chain, (short)0, buffer, offset, CHAIN_SIZE);
+    }
+    
+    /**
+     * Counts the records with a sequence number greater than or equal to
+     * since, i.e. the records a host that archived all logs before since has
+     * not read yet.
      * 
-     * @see #getNextRecord
+     * @param since
+     *            The byte array containing the sequence number (4 bytes)
+     * @param since_offset
+     *            The offset of the sequence number in since[]
+     * @param lost
+     *            A byte array of at least 2*SEQUENCE_SIZE bytes, used as
+     *            working area. On return, holds at lost_offset the number of
+     *            such records already overwritten in the ring (4 bytes).
+     * @param lost_offset
+     *            The offset in lost[]
+     * @return The number of such records still available (the most recent
+     *         ones)
      */
-    public boolean getFirstRecord(byte[] buffer, short offset) {
-      if (head>=LOG_SIZE)
-          it = (short)(head-LOG_SIZE);
-      else
-          it = (short)(LOGS_SIZE-LOG_SIZE);
-      
-      Util.setShort(buffer, offset, nbtotal_logs);
-      Util.setShort(buffer, (short)(offset+2), (short)(LOGS_SIZE/LOG_SIZE));
-      //return true;
-      return getNextRecord(buffer, (short)(offset+4));
+    public short getNbLogsSince(byte[] since, short since_offset, byte[] lost, short lost_offset) {
+        // lost= sequence - since: the number of records since
+        Util.arrayCopyNonAtomic(sequence, (short)0, lost, lost_offset, SEQUENCE_SIZE);
+        if (Biginteger.subtract(lost, lost_offset, since, since_offset, SEQUENCE_SIZE)){
+            // since is in the future
+            Util.arrayFillNonAtomic(lost, lost_offset, SEQUENCE_SIZE, (byte)0);
+            return (short)0;
+        }
+        short nbavail= getNbAvailLogs();
+        short nb= Util.getShort(lost, (short)(lost_offset+2));
+        if ((Util.getShort(lost, lost_offset)==0) && (nb>=0) && (nb<=nbavail)){
+            Util.arrayFillNonAtomic(lost, lost_offset, SEQUENCE_SIZE, (byte)0);
+            return nb;
+        }
+        // lost= lost - nbavail
+        short tmp_offset= (short)(lost_offset+SEQUENCE_SIZE);
+        Util.setShort(lost, tmp_offset, (short)0);
+        Util.setShort(lost, (short)(tmp_offset+2), nbavail);
+        Biginteger.subtract(lost, lost_offset, lost, tmp_offset, SEQUENCE_SIZE);
+        return nbavail;
     }
     
     /**
-     * Retrieves the information record of the next object, if any.
-     * <p>
+     * Returns the offset of a record in the ring, to be read with
+     * getRecordAt().
      * 
+     * @param index
+     *            The age of the record (0 for the most recent log)
+     * @return The offset of the record, or -1 if there is no such record
+     */
+    public short getRecordOffset(short index) {
+        if ((index<0) || (index>=nbavail_logs))
+            return (short)-1;
+        // head points to the byte following the most recent log
+        short pos= head;
+        for (short i=0; i<=index; i++)
+            pos= getPreviousOffset(pos);
+        return pos;
+    }
+    
+    /**
+     * Retrieves the record at a given offset of the ring (see
+     * getRecordOffset()).
+     * 
+     * @param pos
+     *            The offset of the record in the ring
      * @param buffer
      *            The byte array into which the record will be copied
      * @param offset
      *            The offset in buffer[] at which the record will be copied
-     * @return True if an object was found. False if there are no more objects
-     *         to inspect.
-     * @see #getFirstRecord
+     * @return The offset of the previous (older) record
+     */
+    public short getRecordAt(short pos, byte[] buffer, short offset) {
+        decodeLog(pos, buffer, offset);
+        return getPreviousOffset(pos);
+    }
+    
+    /**
+     * Returns true if the (decoded) record at offset pos of buffer matches a
+     * filter [flags(1b) | ins(1b) | id1(2b) | id2(2b)]: only records matching
+     * all the selected criteria match. All records match with flags=0.
+     * 
+     * Flags are a combination of FILTER_INS (instruction equals ins),
+     * FILTER_ID1 (id1 equals id1), FILTER_ID2 (id2 equals id2),
+     * FILTER_SUCCESS (result is 0x9000) and FILTER_ERROR (result is neither
+     * 0x9000 nor 0x0000).
      */
-    public boolean getNextRecord(byte[] buffer, short offset) {
-        if (it == head)
+    private static boolean matchFilter(byte[] filter, short filter_offset, byte[] buffer, short pos) {
+        byte flags= filter[(short)(filter_offset+FILTER_FLAGS)];
+        if (flags==(byte)0)
+            return true;
+        short values= (short)(filter_offset+FILTER_VALUES);
+        if (((flags & FILTER_INS)!=0) && (buffer[(short)(pos+LOG_INS)]!=filter[(short)(values+LOG_INS)]))
+            return false;
+        if (((flags & FILTER_ID1)!=0) && (Util.arrayCompare(buffer, (short)(pos+LOG_ID1), filter, (short)(values+LOG_ID1), (short)2)!=0))
+            return false;
+        if (((flags & FILTER_ID2)!=0) && (Util.arrayCompare(buffer, (short)(pos+LOG_ID2), filter, (short)(values+LOG_ID2), (short)2)!=0))
+            return false;
+        short res= Util.getShort(buffer, (short)(pos+LOG_RES));
+        if (((flags & FILTER_SUCCESS)!=0) && (res!=(short)0x9000))
+            return false;
+        if (((flags & FILTER_ERROR)!=0) && ((res==(short)0x9000) || (res==(short)0x0000)))
             return false;
-        // Setting log ins
-        buffer[(short)(offset + LOG_INS)]= logs[(short)(it+LOG_INS)];
-        // Setting log id1
-        Util.setShort( buffer, (short)(offset+LOG_ID1), Util.getShort(logs, (short)(it+LOG_ID1)) );
-        // Setting log id2
-        Util.setShort( buffer, (short)(offset+LOG_ID2), Util.getShort(logs, (short)(it+LOG_ID2)) );
-        // Setting log res
-        Util.setShort( buffer, (short)(offset+LOG_RES), Util.getShort(logs, (short)(it+LOG_RES)) );
-        // update iterator todo: it= (it-LOG_SIZE)%LOGS_SIZE;
-        if (it>=LOG_SIZE)
-            it = (short)(it-LOG_SIZE);
-        else
-            it = (short)(LOGS_SIZE-LOG_SIZE);
         return true;
     }
+    
+    /**
+     * Retrieves the most recent records matching a filter with a sequence
+     * number lower than a cursor, if any. Records are thus enumerated from
+     * the most recent by a host passing back the cursor: no iterator is kept
+     * on card, and the cursor stays valid while new records are committed.
+     * The filter is given with each call, so that several hosts may
+     * enumerate records independently.
+     * 
+     * @param cursor
+     *            The byte array containing the cursor (SEQUENCE_SIZE bytes):
+     *            records with a lower sequence number are inspected (all
+     *            records if the cursor is above getSequence()). On return,
+     *            holds the sequence number of the last record inspected, to
+     *            be passed back for the next records.
+     * @param cursor_offset
+     *            The offset of the cursor in cursor[]
+     * @param filter
+     *            The byte array containing the filter (FILTER_SIZE bytes), see
+     *            matchFilter()
+     * @param filter_offset
+     *            The offset of the filter in filter[]
+     * @param buffer
+     *            The byte array into which the records will be copied
+     * @param offset
+     *            The offset in buffer[] at which the records will be copied
+     * @param max_records
+     *            The maximum number of records to copy
+     * @return The number of records copied. Less than max_records if there
+     *         are no more records to inspect.
+     */
+    public short getRecordsBefore(byte[] cursor, short cursor_offset, byte[] filter, short filter_offset, 
+            byte[] buffer, short offset, short max_records) {
+        // index= sequence - cursor: number of more recent records to skip
+        Util.arrayCopyNonAtomic(sequence, (short)0, work, (short)0, SEQUENCE_SIZE);
+        if (Biginteger.subtract(work, (short)0, cursor, cursor_offset, SEQUENCE_SIZE)){
+            Util.arrayCopyNonAtomic(sequence, (short)0, cursor, cursor_offset, SEQUENCE_SIZE);
+            Util.arrayFillNonAtomic(work, (short)0, SEQUENCE_SIZE, (byte)0);
+        }
+        if (Util.getShort(work, (short)0)!=0)
+            return (short)0;
+        short index= Util.getShort(work, (short)2);
+        short pos= getRecordOffset(index);
+        if (pos<0)
+            return (short)0;
+        // the walk continues from the record found, for all the records of the call
+        short nb_records= (short)0;
+        while ((index<nbavail_logs) && (nb_records<max_records)){
+            Biginteger.subtract1_carry(cursor, cursor_offset, SEQUENCE_SIZE);
+            pos= getRecordAt(pos, buffer, offset);
+            if (matchFilter(filter, filter_offset, buffer, offset)){
+                offset+= LOG_SIZE;
+                nb_records++;
+            }
+            index++;
+        }
+        return nb_records;
+    }
 
 }// end of Logger class
@@ -100,6 +100,80 @@ public class MemoryManager {
         return true;
     }
     
+    /**
+     * Get the size of the whole memory area managed by this object
+     * 
+     * @return The size (in bytes) of the memory area
+     */
+    public short getMemSize() {
+        return MEM_SIZE;
+    }
+
+    /**
+     * Walk the free memory list and sum up the free nodes' sizes.
+     * <p>
+     * Nodes must be sorted by increasing offset, must not overlap and must
+     * lie within the memory area, which also guarantees that the walk ends.
+     * 
+     * @return The total size of the free nodes (block size fields included)
+     *         or NULL_OFFSET if the free list is malformed
+     * @see #clearFreeList
+     * @see #appendFreeNode
+     */
+    public short getFreeListSize() {
+        short offset = free_head;
+        short limit = (short) 0;
+        short total = (short) 0;
+        while (offset != NULL_OFFSET) {
+            if ((offset < limit) || (offset > (short) (MEM_SIZE - NODE_SIZE)))
+                return NULL_OFFSET;
+            short size = Util.getShort(ptr, offset);
+            if ((size < NODE_SIZE) || (size > (short) (MEM_SIZE - offset)))
+                return NULL_OFFSET;
+            total += size;
+            limit = (short) (offset + size);
+            offset = Util.getShort(ptr, (short) (offset + 2));
+        }
+        return total;
+    }
+
+    /**
+     * Empty the free memory list before rebuilding it with appendFreeNode()
+     * <p>
+     * Used to recover from a torn alloc()/free(): allocated blocks are not
+     * touched, the caller is in charge of declaring every gap between them.
+     */
+    public void clearFreeList() {
+        free_head = NULL_OFFSET;
+    }
+
+    /**
+     * Append a free node at the tail of the free memory list
+     * <p>
+     * Nodes must be appended by increasing offset, so that the list stays
+     * sorted as expected by free().
+     * 
+     * @param prev
+     *            The previous node returned by this method, or NULL_OFFSET
+     *            for the first node
+     * @param offset
+     *            The offset at which the free node starts
+     * @param size
+     *            The size of the free node (must be at least NODE_SIZE)
+     * @return The offset of the new node, to be passed as prev for the next
+     *         call
+     * @see #clearFreeList
+     */
+    public short appendFreeNode(short prev, short offset, short size) {
+        Util.setShort(ptr, offset, size);
+        Util.setShort(ptr, (short) (offset + 2), NULL_OFFSET);
+        if (prev == NULL_OFFSET)
+            free_head = offset;
+        else
+            Util.setShort(ptr, (short) (prev + 2), offset);
+        return offset;
+    }
+
     /**
      * Allocate memory
      * <p>
@@ -441,6 +515,19 @@ public class MemoryManager {
         Util.arrayCopy(src_bytes, src_offset, ptr, (short) (dst_base + dst_offset), size);
     }
 
+    /**
+     * Copy a byte sequence into memory without going through the commit
+     * buffer
+     * <p>
+     * Only use this on memory that is not reachable yet (e.g. an object that
+     * is not linked in any list), so that a torn write cannot be observed.
+     * 
+     * @see #setBytes
+     */
+    public void setBytesNonAtomic(short dst_base, short dst_offset, byte[] src_bytes, short src_offset, short size) {
+        Util.arrayCopyNonAtomic(src_bytes, src_offset, ptr, (short) (dst_base + dst_offset), size);
+    }
+
     /**
      * Copy a byte sequence from memory
      * 
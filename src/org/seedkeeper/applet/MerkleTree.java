@@ -0,0 +1,207 @@
+package org.seedkeeper.applet;
+
+import javacard.framework.Util;
+import javacard.security.MessageDigest;
+
+/**
+ * MerkleTree Class
+ * <p>
+ *
+ * Maintains a hash tree over the objects of a vault, so that two cards can be
+ * compared by their root hash, and a mismatch narrowed down by descending the
+ * tree.
+ * <p>
+ *
+ * The number of leaves is a power of 2 sized from the capacity of the vault
+ * (see getNbLeaves()), so that leaves hold a few objects each. An object is
+ * assigned to a leaf by the first bytes of its hash, which only depends on its
+ * content: the same object is in the same leaf on every card, whatever its id.
+ * The value of a leaf is the sum modulo 2^256 of the hashes of all the objects
+ * assigned to it (zero if none), an additive multiset hash where equal objects
+ * do not cancel out (an object would be removed by subtracting its hash).
+ * Adding an object thus adds its hash in a leaf, then the path from this leaf
+ * to the root is recomputed: O(log(nb_leaves)) hash operations. Trees can be
+ * compared node by node if they have the same number of leaves.
+ * <p>
+ *
+ * Nodes are stored in a single array using the heap layout:
+ *
+ * <pre>
+ *   node 0: root
+ *   node i: children are nodes 2i+1 (left) and 2i+2 (right)
+ *   leaf j: node nb_leaves-1+j
+ *   internal node = SHA256(left | right)
+ * </pre>
+ *
+ * Nodes are updated without transaction. A persistent dirty flag is set before
+ * any change and cleared once the tree is consistent again: a tree found
+ * dirty (e.g. after a card tear) must be rebuilt with clear(), addLeaf() and
+ * computeNodes().
+ */
+public class MerkleTree {
+
+    public final static short MIN_LEAVES = (short) 2; // must be a power of 2
+    public final static short MAX_LEAVES = (short) 256; // must be a power of 2
+    /** Vault capacity in bytes per leaf (a few small secrets) */
+    private final static short BYTES_PER_LEAF = (short) 128;
+    public final static short HASH_SIZE = (short) 32;
+
+    /** The array storing the nodes' hashes **/
+    private byte[] nodes;
+
+    private short nb_leaves;
+
+    /** Set while the tree is being updated **/
+    private boolean dirty;
+
+    private MessageDigest sha256;
+
+    /**
+     * Constructor for the MerkleTree class.
+     *
+     * @param digest
+     *            A SHA-256 MessageDigest instance (may be shared)
+     * @param mem_size
+     *            The size in bytes of the vault
+     */
+    public MerkleTree(MessageDigest digest, short mem_size) {
+        sha256 = digest;
+        nb_leaves = getNbLeaves(mem_size);
+        nodes = new byte[getTreeSize(mem_size)];
+        computeNodes();
+    }
+
+    /**
+     * Returns the number of leaves of the tree of a vault of mem_size bytes: one
+     * leaf per BYTES_PER_LEAF bytes, rounded up to a power of 2 within
+     * [MIN_LEAVES, MAX_LEAVES]
+     */
+    public static short getNbLeaves(short mem_size) {
+        short needed = (short) (mem_size / BYTES_PER_LEAF);
+        if ((short) (mem_size % BYTES_PER_LEAF) != 0)
+            needed++;
+        short leaves = MIN_LEAVES;
+        while ((leaves < MAX_LEAVES) && (leaves < needed))
+            leaves <<= 1;
+        return leaves;
+    }
+
+    /** Returns the size in bytes of the persistent memory used by the tree of a vault of mem_size bytes */
+    public static short getTreeSize(short mem_size) {
+        return (short) ((short) (2 * getNbLeaves(mem_size) - 1) * HASH_SIZE);
+    }
+
+    /** Returns the number of leaves */
+    public short getNbLeaves() {
+        return nb_leaves;
+    }
+
+    /** Returns the number of nodes */
+    public short getNbNodes() {
+        return (short) (2 * nb_leaves - 1);
+    }
+
+    /** Returns true if the tree must be rebuilt */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Marks the tree as being updated. Must be called before the vault is
+     * modified, so that a card tear between the vault update and the tree
+     * update leaves the tree dirty.
+     */
+    public void setDirty() {
+        dirty = true;
+    }
+
+    /** Resets all nodes to zero (tree stays dirty until computeNodes()) */
+    public void clear() {
+        dirty = true;
+        Util.arrayFillNonAtomic(nodes, (short) 0, (short) nodes.length, (byte) 0x00);
+    }
+
+    /** Returns the node index of the leaf of an object hash */
+    public short getLeaf(byte[] hash, short hash_offset) {
+        return (short) (nb_leaves - 1 + (Util.getShort(hash, hash_offset) & (short) (nb_leaves - 1)));
+    }
+
+    /**
+     * Adds an object hash to its leaf, without updating the internal nodes.
+     * Used to rebuild the tree, followed by computeNodes().
+     *
+     * @param hash
+     *            The byte array containing the object hash (HASH_SIZE bytes)
+     * @param hash_offset
+     *            The offset of the hash in hash[]
+     * @return The node index of the leaf
+     */
+    public short addLeaf(byte[] hash, short hash_offset) {
+        dirty = true;
+        short node = getLeaf(hash, hash_offset);
+        Biginteger.add_carry(nodes, (short) (node * HASH_SIZE), hash, hash_offset, HASH_SIZE);
+        return node;
+    }
+
+    /**
+     * Adds an object hash to the tree and updates the path from its leaf to
+     * the root.
+     *
+     * @param hash
+     *            The byte array containing the object hash (HASH_SIZE bytes)
+     * @param hash_offset
+     *            The offset of the hash in hash[]
+     */
+    public void addObject(byte[] hash, short hash_offset) {
+        computePath(addLeaf(hash, hash_offset));
+    }
+
+    private void computePath(short node) {
+        while (node > 0) {
+            node = (short) ((short) (node - 1) >> 1);
+            computeNode(node);
+        }
+        dirty = false;
+    }
+
+    /** Recomputes all the internal nodes from the leaves */
+    public void computeNodes() {
+        dirty = true;
+        for (short node = (short) (nb_leaves - 2); node >= 0; node--)
+            computeNode(node);
+        dirty = false;
+    }
+
+    private void computeNode(short node) {
+        // children 2i+1 and 2i+2 are contiguous
+        sha256.reset();
+        sha256.doFinal(nodes, (short) ((short) (2 * node + 1) * HASH_SIZE), (short) (2 * HASH_SIZE),
+                nodes, (short) (node * HASH_SIZE));
+    }
+
+    /** Returns true if node is a leaf */
+    public boolean isLeaf(short node) {
+        return (node >= (short) (nb_leaves - 1));
+    }
+
+    /**
+     * Copies a node hash, and the hashes of its children if it is not a leaf.
+     *
+     * @param node
+     *            The node index (0 for the root)
+     * @param buffer
+     *            The byte array into which the hashes will be copied
+     * @param offset
+     *            The offset in buffer[] at which the hashes will be copied
+     * @return The number of bytes copied (HASH_SIZE or 3*HASH_SIZE)
+     */
+    public short getNode(short node, byte[] buffer, short offset) {
+        Util.arrayCopyNonAtomic(nodes, (short) (node * HASH_SIZE), buffer, offset, HASH_SIZE);
+        if (isLeaf(node))
+            return HASH_SIZE;
+        Util.arrayCopyNonAtomic(nodes, (short) ((short) (2 * node + 1) * HASH_SIZE), buffer,
+                (short) (offset + HASH_SIZE), (short) (2 * HASH_SIZE));
+        return (short) (3 * HASH_SIZE);
+    }
+
+}// end of MerkleTree class
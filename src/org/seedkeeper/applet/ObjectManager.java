@@ -4,6 +4,7 @@ import org.seedkeeper.applet.MemoryManager;
 
 import javacard.framework.Util;
 import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
 
 /**
  * Object Manager Class
@@ -30,6 +31,14 @@ import javacard.framework.ISOException;
  *   byte[] data
  * </pre>
  * 
+ * Tear safety: a new object is fully written (header and data) while it is
+ * still unreachable, then published by a single atomic update of the list
+ * head field. A torn creation can therefore only leak the allocated block,
+ * which is recovered by checkConsistency() on the next applet selection.
+ * Operations that update the lists set a persistent flag for their duration,
+ * so that the check is only done after an operation was torn (see
+ * isDirty()).
+ * 
  * TODO - Could we definitively avoid a map enforcing the ID (equal to the
  * memory address, i.e.) - security implications ?
  * 
@@ -51,17 +60,11 @@ public class ObjectManager {
     public final static short SW_NO_MEMORY_LEFT = (short) 0x9C01;
 
     /**
-     * Size of an Object Record filled by getFirstRecord() or getNextRecord():
+     * Size of an Object Record:
      * ID, Size, ACL
      */
     public final static short RECORD_SIZE = (short) (4 + 4); //(short) (4 + 4 + OBJ_ACL_SIZE);
 
-    /**
-     * Iterator on objects. Stores the offset of the last retrieved object's
-     * record.
-     */
-    private short it;
-
     /** The Memory Manager object */
     private MemoryManager mem = null;
 
@@ -71,6 +74,19 @@ public class ObjectManager {
     /** Head of the objects' list */
     private short obj_list_head = MemoryManager.NULL_OFFSET;
 
+    /** Next candidate ID returned by allocateId() */
+    private short next_id = (short) 0;
+
+    /** Set while the objects' list or the free list is being updated */
+    private boolean dirty = false;
+
+    /** Set while objects are staged (see beginStaging()) */
+    private boolean staging = false;
+
+    /** Head and tail of the list of staged objects */
+    private short staged_head = MemoryManager.NULL_OFFSET;
+    private short staged_tail = MemoryManager.NULL_OFFSET;
+
     /**
      * Constructor for the ObjectManager class.
      * 
@@ -94,11 +110,28 @@ public class ObjectManager {
      *         successive calls to xxxFromAddress() methods.
      */
     public boolean resetObjectManager(boolean secure_erase) {
+        dirty = true;
         mem.resetMemory(secure_erase);
         obj_list_head = MemoryManager.NULL_OFFSET;
+        next_id = (short) 0;
+        dirty = false;
         return true;
     }
 
+    /**
+     * Returns a free object ID for the specified type. IDs are allocated in
+     * increasing order and are not reused until the object manager is reset.
+     * 
+     * @param type
+     *            Object Type
+     * @return An ID that is not used by any object of this type
+     */
+    public short allocateId(short type) {
+        while (exists(type, next_id))
+            next_id++;
+        return next_id++;
+    }
+
     /**
      * Creates an object with specified parameters. Throws a SW_NO_MEMORY_LEFT
      * exception if cannot allocate the memory. Does not check if object exists.
@@ -111,23 +144,68 @@ public class ObjectManager {
      *         successive calls to xxxFromAddress() methods.
      */
     public short createObject(short type, short id, short size) {
+        short base = allocObject(type, id, size);
+        publishObject(base);
+        // Return data-address
+        return (short) (base + OBJ_HEADER_SIZE);
+    }
+
+    /**
+     * Creates an object and fills its data in one go. Throws a
+     * SW_NO_MEMORY_LEFT exception if cannot allocate the memory. Does not
+     * check if object exists.
+     * <p>
+     * Header and data are written before the object is linked in the list, so
+     * a torn operation never exposes a partially written object.
+     * 
+     * @param type
+     *            Object Type
+     * @param id
+     *            Object ID (Type and ID form a generic 4 bytes identifier)
+     * @param src_data
+     *            The byte array holding the object data
+     * @param src_offset
+     *            The offset of the object data in src_data[]
+     * @param size
+     *            The object data size
+     * @return The memory base address for the object. It can be used in
+     *         successive calls to xxxFromAddress() methods.
+     */
+    public short createObject(short type, short id, byte[] src_data, short src_offset, short size) {
+        short base = allocObject(type, id, size);
+        // Object is not reachable yet: no need for the commit buffer
+        mem.setBytesNonAtomic(base, OBJ_HEADER_SIZE, src_data, src_offset, size);
+        publishObject(base);
+        // Return data-address
+        return (short) (base + OBJ_HEADER_SIZE);
+    }
+
+    /** Allocates and fills the header of a new (not yet reachable) object */
+    private short allocObject(short type, short id, short size) {
         /* Allocate memory for new object */
+        dirty = true;
         short base = mem.alloc((short) (size + OBJ_HEADER_SIZE));
-        if (base == MemoryManager.NULL_OFFSET)
+        if (base == MemoryManager.NULL_OFFSET) {
+            dirty = staging;
             ISOException.throwIt(SW_NO_MEMORY_LEFT);
+        }
         /* New obj will be inserted in the head of the list */
         mem.setShort(base, OBJ_H_NEXT, obj_list_head);
         mem.setShort(base, OBJ_H_CLASS, type);
         mem.setShort(base, OBJ_H_ID, id);
         mem.setShort(base, OBJ_H_SIZE, size);
         //mem.setBytes(base, OBJ_H_ACL, acl_buf, acl_offset, OBJ_ACL_SIZE);
+        return base;
+    }
+
+    /** Links an object allocated by allocObject() at the head of the list */
+    private void publishObject(short base) {
+        // Update of a persistent field is atomic: this is the commit point
         obj_list_head = base;
+        dirty = false;
 
         /* Add to the map */
         // map.addEntry(type, id, base);
-
-        // Return data-address
-        return (short) (base + OBJ_HEADER_SIZE);
     }
 
     /** Creates an object with the maximum available size */
@@ -158,11 +236,12 @@ public class ObjectManager {
         if (base == MemoryManager.NULL_OFFSET)
             ISOException.throwIt((short) 0x9C07); //TODO: assign code
         // Delegate every check to the Memory Manager
-        if (mem.realloc(base, (short) (new_size + OBJ_HEADER_SIZE))) {
+        dirty = true;
+        boolean done = mem.realloc(base, (short) (new_size + OBJ_HEADER_SIZE));
+        if (done)
             mem.setShort(base, OBJ_H_SIZE, new_size);
-            return true;
-        }
-        return false;
+        dirty = false;
+        return done;
     }
 
 //    /** Write data at the specified location in an object */
@@ -220,9 +299,13 @@ public class ObjectManager {
             }
         }
         if (found) {
+            dirty = true;
             // Unlink object from the list
             if (prev != MemoryManager.NULL_OFFSET) {
+                // Keep the 2-byte link update atomic (minimal commit buffer usage)
+                JCSystem.beginTransaction();
                 mem.setShort(prev, OBJ_H_NEXT, mem.getShort(base, OBJ_H_NEXT));
+                JCSystem.commitTransaction();
             } else {
                 obj_list_head = mem.getShort(base, OBJ_H_NEXT);
             }
@@ -233,7 +316,175 @@ public class ObjectManager {
 
             // Free memory
             mem.free(base);
+            dirty = false;
+        }
+    }
+
+    /**
+     * Checks that the object list and the free memory list are consistent,
+     * and repairs them otherwise.
+     * <p>
+     * This is meant to be called when the applet is selected, to recover from
+     * a card tear in the middle of a createObject() or destroyObject(). An
+     * object list entry that points outside the memory area truncates the
+     * list. If the free memory does not add up with the allocated objects
+     * (leaked block, torn free list update), the free list is rebuilt from
+     * the gaps between the objects that are linked in the list.
+     * 
+     * @return True if the store was consistent, false if it was repaired.
+     */
+    public boolean checkConsistency() {
+        // staged objects are not linked: their memory is reclaimed
+        boolean consistent = checkLists() && !staging;
+        endStaging();
+        return consistent;
+    }
+
+    /**
+     * Returns true if an update of the objects' list or of the free list was
+     * torn, so that checkConsistency() must be called.
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    private boolean checkLists() {
+        short mem_size = mem.getMemSize();
+        boolean consistent = true;
+
+        /* Validate the object list and sum up the allocated blocks' sizes */
+        short used = (short) 0;
+        short prev = MemoryManager.NULL_OFFSET;
+        short base = obj_list_head;
+        while (base != MemoryManager.NULL_OFFSET) {
+            short block_size = (short) 0;
+            if ((base >= (short) 2) && (base <= (short) (mem_size - OBJ_HEADER_SIZE)))
+                block_size = (short) (mem.getBlockSize(base) + 2);
+            // block must hold the header and fit in memory
+            if ((block_size < (short) (OBJ_HEADER_SIZE + 2))
+                    || (block_size > (short) (mem_size - used))
+                    || (block_size > (short) (mem_size - base + 2))) {
+                // unrecoverable link: truncate the list here
+                if (prev == MemoryManager.NULL_OFFSET)
+                    obj_list_head = MemoryManager.NULL_OFFSET;
+                else
+                    mem.setShort(prev, OBJ_H_NEXT, MemoryManager.NULL_OFFSET);
+                consistent = false;
+                break;
+            }
+            used += block_size;
+            prev = base;
+            base = mem.getShort(base, OBJ_H_NEXT);
+        }
+
+        /* Every byte must either belong to an object or to the free list */
+        short free = mem.getFreeListSize();
+        if (consistent && (free != MemoryManager.NULL_OFFSET) && ((short) (used + free) == mem_size))
+            return true;
+
+        /*
+         * Rebuild the free list: gaps between linked objects are free, in
+         * increasing address order. This is quadratic in the number of objects
+         * but only happens after a tear.
+         */
+        mem.clearFreeList();
+        short node = MemoryManager.NULL_OFFSET;
+        short cursor = (short) 0;
+        while (cursor < mem_size) {
+            // find the lowest allocated block starting at or after cursor
+            short block = mem_size;
+            base = obj_list_head;
+            while (base != MemoryManager.NULL_OFFSET) {
+                short start = (short) (base - 2);
+                if ((start >= cursor) && (start < block))
+                    block = start;
+                base = mem.getShort(base, OBJ_H_NEXT);
+            }
+            // gaps smaller than a free node cannot be reclaimed
+            if ((short) (block - cursor) >= (short) 4)
+                node = mem.appendFreeNode(node, cursor, (short) (block - cursor));
+            if (block == mem_size)
+                break;
+            cursor = (short) (block + mem.getBlockSize((short) (block + 2)) + 2);
+        }
+        return false;
+    }
+
+    /* STAGED OBJECTS */
+
+    /**
+     * Starts staging objects: objects created by createStagedObject() are
+     * linked in a separate list, and become part of the store only when
+     * publishStaged() is called. If staging is not completed, the staged
+     * objects are released by abortStaging(), or recovered by
+     * checkConsistency() on next selection after a card tear.
+     */
+    public void beginStaging() {
+        abortStaging();
+        dirty = true;
+        staging = true;
+        staged_head = MemoryManager.NULL_OFFSET;
+        staged_tail = MemoryManager.NULL_OFFSET;
+    }
+
+    /**
+     * Creates a staged object with a new ID and fills its data. Throws a
+     * SW_NO_MEMORY_LEFT exception if cannot allocate the memory.
+     * 
+     * @param type
+     *            Object Type
+     * @param src_data
+     *            The byte array holding the object data
+     * @param src_offset
+     *            The offset of the object data in src_data[]
+     * @param size
+     *            The object data size
+     * @return The ID of the object
+     */
+    public short createStagedObject(short type, byte[] src_data, short src_offset, short size) {
+        // staged ids are allocated in increasing order, like ids of the store
+        short id = allocateId(type);
+        short base = allocObject(type, id, size);
+        mem.setShort(base, OBJ_H_NEXT, staged_head);
+        mem.setBytesNonAtomic(base, OBJ_HEADER_SIZE, src_data, src_offset, size);
+        if (staged_tail == MemoryManager.NULL_OFFSET)
+            staged_tail = base;
+        staged_head = base;
+        return id;
+    }
+
+    /** Links the staged objects at the head of the objects' list */
+    public void publishStaged() {
+        if (staged_head != MemoryManager.NULL_OFFSET) {
+            // the staged list is not reachable yet
+            mem.setShort(staged_tail, OBJ_H_NEXT, obj_list_head);
+            // Update of a persistent field is atomic: this is the commit point
+            obj_list_head = staged_head;
+        }
+        endStaging();
+    }
+
+    /** Releases the staged objects, zeroing their memory */
+    public void abortStaging() {
+        if (!staging)
+            return;
+        short base = staged_head;
+        while (base != MemoryManager.NULL_OFFSET) {
+            short next = mem.getShort(base, OBJ_H_NEXT);
+            Util.arrayFillNonAtomic(mem.getBuffer(), (short) (base + OBJ_HEADER_SIZE), mem.getShort(base,
+                    OBJ_H_SIZE), (byte) 0x00);
+            staged_head = next;
+            mem.free(base);
+            base = next;
         }
+        endStaging();
+    }
+
+    private void endStaging() {
+        staging = false;
+        staged_head = MemoryManager.NULL_OFFSET;
+        staged_tail = MemoryManager.NULL_OFFSET;
+        dirty = false;
     }
 
     /**
@@ -315,65 +566,65 @@ public class ObjectManager {
     }
     
     /**
-     * Resets the objects iterator and retrieves the information record of the
-     * first object, if any.
-     * <p>
-     * 
-     * @param buffer
-     *            The byte array into which the record will be copied
-     * @param offset
-     *            The offset in buffer[] at which the record will be copied
-     * @return True if an object was found. False if there are no objects.
+     * Returns the base address of the first object of the list, if any. The
+     * list is walked with getNextObject(), the caller keeping the position:
+     * the position must not be kept across an object deletion.
      * 
-     * @see #getNextRecord
+     * @return The base address of the object, or NULL_OFFSET if there are no
+     *         objects.
+     * @see #getNextObject
      */
-//    public boolean getFirstRecord(byte[] buffer, short offset) {
-//        it = obj_list_head;
-//        return getNextRecord(buffer, offset);
-//    }
-    /** returns the base address of the object instead of record **/
-    public short getFirstRecord() {
-        it = obj_list_head;
-        return getNextRecord();
+    public short getFirstObject() {
+        if (obj_list_head == MemoryManager.NULL_OFFSET)
+            return MemoryManager.NULL_OFFSET;
+        return (short)(obj_list_head+OBJ_HEADER_SIZE);
     }
     
     /**
-     * Retrieves the information record of the next object, if any.
-     * <p>
+     * Returns the base address of the object following an object in the list.
      * 
-     * @param buffer
-     *            The byte array into which the record will be copied
-     * @param offset
-     *            The offset in buffer[] at which the record will be copied
-     * @return True if an object was found. False if there are no more objects
-     *         to inspect.
-     * @see #getFirstRecord
+     * @param base
+     *            The base address of the current object
+     * @return The base address of the next object, or NULL_OFFSET if there
+     *         are no more objects.
+     * @see #getFirstObject
      */
-//    public boolean getNextRecord(byte[] buffer, short offset) {
-//        if (it == MemoryManager.NULL_OFFSET)
-//            return false;
-//        // Setting Object Class
-//        Util.setShort(buffer, offset, mem.getShort(it, OBJ_H_CLASS));
-//        // Setting Object ID
-//        Util.setShort(buffer, (short) (offset + 2), mem.getShort(it, OBJ_H_ID));
-//        // Setting Size's M.S.Short to zero.
-//        Util.setShort(buffer, (short) (offset + 4), (short) 0);
-//        // Setting Size's L.S.Short
-//        Util.setShort(buffer, (short) (offset + 6), mem.getShort(it, (short) OBJ_H_SIZE));
-//        // Setting ACL
-//        //Util.arrayCopyNonAtomic(mem.getBuffer(), (short) (it + OBJ_H_ACL), buffer, (short) (offset + 8), OBJ_ACL_SIZE);
-//        // Advance iterator
-//        it = mem.getShort(it, OBJ_H_NEXT);
-//        return true;
-//    }
-    /** returns the base address of the object instead of record **/
-    public short getNextRecord() {
-        if (it == MemoryManager.NULL_OFFSET)
+    public short getNextObject(short base) {
+        short next= mem.getShort((short)(base-OBJ_HEADER_SIZE), OBJ_H_NEXT);
+        if (next == MemoryManager.NULL_OFFSET)
             return MemoryManager.NULL_OFFSET;
-        short base= (short)(it+OBJ_HEADER_SIZE);
-        // Advance iterator
-        it = mem.getShort(it, OBJ_H_NEXT);
-        return base;
+        return (short)(next+OBJ_HEADER_SIZE);
+    }
+    
+    /**
+     * Returns the object with the lowest id greater than or equal to a cursor
+     * (ids compared as unsigned shorts). Objects are thus enumerated in id
+     * order by a host passing (last id + 1) as cursor, which needs no state on
+     * card and stays valid whatever objects are created or deleted in between.
+     * 
+     * @param type
+     *            The object type
+     * @param cursor
+     *            The lowest id to return (0 for the first object)
+     * @return The base address of the object, or NULL_OFFSET if there are no
+     *         more objects.
+     */
+    public short getObjectFrom(short type, short cursor) {
+        short found= MemoryManager.NULL_OFFSET;
+        short found_id= (short)0;
+        for (short base= getFirstObject(); base != MemoryManager.NULL_OFFSET; base= getNextObject(base)) {
+            short entry= (short)(base-OBJ_HEADER_SIZE);
+            if (mem.getShort(entry, OBJ_H_CLASS) != type)
+                continue;
+            short id= mem.getShort(entry, OBJ_H_ID);
+            if (Biginteger.isStrictlyLessThanUnsigned(id, cursor))
+                continue;
+            if ((found == MemoryManager.NULL_OFFSET) || Biginteger.isStrictlyLessThanUnsigned(id, found_id)) {
+                found= base;
+                found_id= id;
+            }
+        }
+        return found;
     }
 
 } // class MemoryManager
\ No newline at end of file
@@ -54,6 +54,7 @@ import javacard.framework.Util;
 import javacard.security.AESKey;
 import javacard.security.ECPrivateKey;
 import javacard.security.ECPublicKey;
+import javacard.security.HMACKey;
 import javacard.security.CryptoException;
 import javacard.security.Key;
 import javacard.security.KeyAgreement;
@@ -62,12 +63,13 @@ import javacard.security.KeyBuilder;
 import javacard.security.Signature;
 import javacard.security.MessageDigest;
 import javacard.security.RandomData;
+import javacardx.apdu.ExtendedLength;
 import javacardx.crypto.Cipher;
 
 /**
  * Implements MUSCLE's Card Edge Specification.
  */
-public class SeedKeeper extends javacard.framework.Applet { 
+public class SeedKeeper extends javacard.framework.Applet implements ExtendedLength { 
 
     /* constants declaration */
 
@@ -147,6 +149,9 @@ public class SeedKeeper extends javacard.framework.Applet {
     // secure channel
     private final static byte INS_INIT_SECURE_CHANNEL = (byte) 0x81;
     private final static byte INS_PROCESS_SECURE_CHANNEL = (byte) 0x82;
+    private final static byte INS_RESUME_SECURE_CHANNEL = (byte) 0x83;
+    private final static byte INS_REKEY_SECURE_CHANNEL = (byte) 0x84;
+    private final static byte INS_PROCESS_BATCH = (byte) 0x85;
 
     // SeedKeeper
     private final static byte INS_GENERATE_MASTERSEED= (byte)0xA0;
@@ -162,7 +167,11 @@ public class SeedKeeper extends javacard.framework.Applet {
     //private final static byte INS_IMPORT_SHAMIR_SHARED_SECRET= (byte)0xA7;
     //private final static byte INS_EXPORT_SHAMIR_SHARED_SECRET= (byte)0xA8;
     private final static byte INS_PRINT_LOGS= (byte)0xA9;
+    private final static byte INS_GET_MERKLE_NODE= (byte)0xAA;
+    private final static byte INS_EXPORT_STORE_IMAGE= (byte)0xAB;
+    private final static byte INS_RESTORE_STORE_IMAGE= (byte)0xAC;
     private final static byte INS_EXPORT_AUTHENTIKEY= (byte) 0xAD;
+    private final static byte INS_GET_STATISTICS= (byte) 0xAF;
     
     // Personalization PKI support
     private final static byte INS_IMPORT_PKI_CERTIFICATE = (byte) 0x92;
@@ -180,6 +189,9 @@ public class SeedKeeper extends javacard.framework.Applet {
     // reset to factory settings
     private final static byte INS_RESET_TO_FACTORY = (byte) 0xFF;
     
+    // ISO 7816-4 GET RESPONSE, used to retrieve chained responses (SW 61xx)
+    private final static byte INS_GET_RESPONSE = (byte) 0xC0;
+    
     /****************************************
      *          Error codes                 *
      ****************************************/
@@ -288,6 +300,8 @@ public class SeedKeeper extends javacard.framework.Applet {
     private final static byte ALG_EC_SVDP_DH_PLAIN= (byte) 3; //https://javacard.kenai.com/javadocs/connected/javacard/security/KeyAgreement.html#ALG_EC_SVDP_DH_PLAIN
     private final static byte ALG_EC_SVDP_DH_PLAIN_XY= (byte) 6; //https://docs.oracle.com/javacard/3.0.5/api/javacard/security/KeyAgreement.html#ALG_EC_SVDP_DH_PLAIN_XY
     private final static short LENGTH_EC_FP_256= (short) 256;
+    // JC API 3.0.4 does not define this constant:
+    private final static byte ALG_AES_CMAC_128= (byte) 49; //https://docs.oracle.com/javacard/3.0.5/api/javacard/security/Signature.html#ALG_AES_CMAC_128
 
     /****************************************
      * Instance variables declaration *
@@ -298,7 +312,7 @@ public class SeedKeeper extends javacard.framework.Applet {
     
     //logger logs critical operations performed by the applet such as key export
     private Logger logger;
-    private final static short LOGGER_NBRECORDS= (short) 100;
+    private final static short LOGGER_NBRECORDS= (short) 100; // default, can be set during setup
     
     private final static byte MAX_CARD_LABEL_SIZE = (byte) 64;
     private byte card_label_size= (byte)0x00;
@@ -308,13 +322,23 @@ public class SeedKeeper extends javacard.framework.Applet {
     // for each element: [id | mnemonic | passphrase | master_seed | encrypted_master_seed | label | status | settings ]
     // status: externaly/internaly generated, shamir, bip39 or electrum, 
     // settings: can be exported in clear, 
-    private final static short OM_SIZE= (short) 0xFFF; //todo
-    private ObjectManager om_secrets;
+    private final static short OM_SIZE= (short) 0xFFF; // default, can be set during setup
+    private final static short OM_MIN_SIZE= (short) 0x100;
+    // persistent memory kept available after setup for later allocations (certificate...)
+    private final static short MIN_FREE_PERSISTENT_MEMORY= (short) 0x200;
+    private ObjectManager om_secrets; // vault of PIN[0], also om_vaults[0]
     private AESKey om_encryptkey; // used to encrypt sensitive data in object
     private Cipher om_aes128_ecb; // 
-    private short om_nextid;
     private final static short OM_TYPE= 0x00;
     
+    // partitioned vaults: each PIN owns a separate object store (own ids, index & memory pool)
+    private final static short OPTION_PARTITIONED_VAULTS= (short) 0x0001;
+    private final static short OM_VAULT_SIZE= (short) 0x400; // default, can be set during setup
+    private ObjectManager[] om_vaults;
+    private MerkleTree[] om_trees; // hash tree over the objects of each vault
+    private short om_vault_size= OM_VAULT_SIZE;
+    private byte[] active_vault; // PIN number of the vault used by secret operations
+    
     // type of secrets stored
     private final static byte SECRET_TYPE_MASTER_SEED = (byte) 0x10;
     private final static byte SECRET_TYPE_ENCRYPTED_MASTER_SEED = (byte) 0x20;
@@ -360,12 +384,22 @@ public class SeedKeeper extends javacard.framework.Applet {
     private final static byte MIN_SEED_SIZE= (byte) 16;
     
     private final static byte AES_BLOCKSIZE= (byte)16;
+    
+    // store image: [nb_objects(2b) | RFU(14b)] | records | padding, where record= [obj_size(2b) | object (secret decrypted)]
+    private final static short IMAGE_HEADER_SIZE= (short)16;
+    private final static short IMAGE_OFFSET_NB_OBJECTS= (short)0;
+    private final static short IMAGE_CHALLENGE_SIZE= (short)32;
+    private final static short IMAGE_OFFSET_CHALLENGE= (short)(SECRET_HEADER_SIZE+MAX_LABEL_SIZE+80); // in recvBuffer, after a pubkey object
+    private final static short IMAGE_CHUNK_SIZE= (short)192; // multiple of 16, fits a secure channel response
+    private final static short EXPORT_CHUNK_SIZE= (short)128; // multiple of 16, chunks of secrets exported
     private final static byte SIZE_2FA= (byte)20;
     private static final byte[] SECRET_CST_SC = {'s','e','c','k','e','y', 's','e','c','m','a','c'};
     private byte[] secret_sc_buffer;
+    private byte[] secret_sc_mac_ctx; // HmacSha160 context of the secret_sc_buffer mackey
     private AESKey secret_sc_sessionkey;
     private Cipher secret_sc_aes128_cbc;
     private MessageDigest secret_sha256;
+    private ECPublicKey image_target_pubkey; // authentikey of the target of a store image
     
     //debug
     // common data_header: [ type(1b) | origin(1b) | export_control(1b) | nb_export_plain(1b) | nb_export_secure(1b) | expot_pubkey_counter(1b) | fingerprint (4b) | RFU(2b) | label_size(1b) | label ]
@@ -382,6 +416,8 @@ public class SeedKeeper extends javacard.framework.Applet {
     private byte[] recvBuffer; 
     private byte[] tmpBuffer; //used for hmac computation
     private byte[] tmpBuffer2; //used in securechannel
+    private byte[] batchBuffer; //commands & responses of a batch
+    private final static short BATCH_BUFFER_SIZE = (short) 256;
     
     /*
      * Logged identities: this is used for faster access control, so we don't
@@ -405,6 +441,8 @@ public class SeedKeeper extends javacard.framework.Applet {
     private short lock_recv_offset=(short)0;
     private short lock_data_size=(short)0;
     private short lock_data_remaining=(short)0;
+    private short lock_image_offset=(short)0;
+    private short lock_image_record=(short)0;
     
     // shared cryptographic objects
     private RandomData randomData;
@@ -418,6 +456,44 @@ public class SeedKeeper extends javacard.framework.Applet {
     private final static byte MAX_RESET_COUNTER= (byte)5;
     private byte reset_counter=MAX_RESET_COUNTER;
     
+    // cursors of the listings without cursor in the command (see listSecretHeaders & printLogs)
+    private byte[] cursors;
+    private final static byte CURSOR_OBJECTS= (byte)0; // lowest id to list (2b)
+    private final static byte CURSOR_LOGS= (byte)2; // logs before this sequence number (4b)
+    private final static byte CURSOR_LOG_FILTER= (byte)6; // filter of the logs paged with OP_PROCESS (6b)
+    private final static byte CURSORS_SIZE= (byte)12;
+    
+    // chained log dump, retrieved with GET RESPONSE (see printLogs)
+    private short[] chain_state;
+    private final static byte CHAIN_INS= (byte)0; // INS_PRINT_LOGS if a dump is in progress, 0 otherwise 
+    private final static byte CHAIN_POS= (byte)1; // offset in the response stream
+    private final static byte CHAIN_SIZE= (byte)2; // size of the response stream (without padding)
+    private final static byte CHAIN_PADDED_SIZE= (byte)3; // size of the response stream (with padding if encrypted)
+    private final static byte CHAIN_START= (byte)4; // age of the first log returned
+    private final static byte CHAIN_COUNT= (byte)5; // number of logs returned
+    private final static byte CHAIN_LOST= (byte)6; // number of unread logs overwritten (2 shorts, MSB first)
+    private final static byte CHAIN_RECORD= (byte)8; // index of the log being sent
+    private final static byte CHAIN_CURSOR= (byte)9; // offset of this log in the ring
+    private final static byte CHAIN_NEXT= (byte)10; // offset of the next (older) log in the ring
+    private final static byte CHAIN_TRAILER= (byte)11; // size of the signed chain trailer stored in recvBuffer, after the logs
+    private final static byte CHAIN_STATE_SIZE= (byte)12;
+    private final static short CHAIN_CHUNK_SIZE= (short)240; // multiple of 16, fits a short response with the IV & size
+    private final static short LOGS_HEADER_SIZE= (short)14;
+    private final static short LOGS_PAGE_SIZE= (short)19; // logs returned by OP_PROCESS in paging mode (133 bytes)
+    private final static short LOGS_SIGNED_WINDOW_SIZE= (short)12; // [nb_logs(2b) | sequence(4b) | nb_lost(4b) | start(2b)], signed with the chain
+    // largest response that fits in a short APDU once encrypted: [IV(16b) | size(2b) | 224b]
+    private final static short MAX_PAGE_SIZE= (short)223;
+    // smallest APDU buffer accepted at setup: a short command with 255 bytes of data, or a 256 bytes response
+    private final static short MIN_APDU_BUFFER_SIZE= (short)261;
+    // flag of the CLA byte of a command decrypted by ProcessSecureChannel, set if it has an extended Lc
+    private final static byte SC_CLA_EXTENDED= (byte)0x01;
+    
+    // current command, for short and extended APDUs (see receiveCommand)
+    private short[] io_state;
+    private final static byte IO_DATA_SIZE= (byte)0; // size of the command data at ISO7816.OFFSET_CDATA
+    private final static byte IO_MAX_RESPONSE= (byte)1; // size of the largest response, before secure channel encryption
+    private final static byte IO_STATE_SIZE= (byte)2;
+    
     /*********************************************
      *  BIP32 Hierarchical Deterministic Wallet  *
      *********************************************/
@@ -449,6 +525,44 @@ public class SeedKeeper extends javacard.framework.Applet {
     private static final byte SIZE_SC_IV_RANDOM=12;
     private static final byte SIZE_SC_IV_COUNTER=SIZE_SC_IV-SIZE_SC_IV_RANDOM;
     private static final byte SIZE_SC_BUFFER=SIZE_SC_MACKEY+SIZE_SC_IV;
+    private static final short SC_RESPONSE_OFFSET=SIZE_SC_IV+2; // encrypted response: [IV(16b) | size(2b) | data]
+    // resumption ticket: [ticket_id(8b) | ticket_secret(20b) | uses(1b)], see ResumeSecureChannel()
+    private static final byte[] CST_SC_RESUME = {'s','c','_','r','e','s'};
+    // encrypted PIN block sent with InitiateSecureChannel: [pin_size(1b) | pin | padding], followed by a mac
+    private static final byte[] CST_SC_PIN = {'s','c','_','p','i','n','s','c','_','p','m','c'};
+    private static final byte SIZE_SC_PIN_BLOCK= 32;
+    // single-use nonce for the PIN block, issued by GetStatus: [valid(1b) | nonce(16b)]
+    private byte[] sc_pin_nonce;
+    private byte[] sc_ticket; // persistent, so that it survives a reconnection; updated with a single arrayCopy
+    private static final byte MAX_SC_RESUMPTIONS= 8;
+    private static final byte SIZE_SC_TICKET_ID= 8;
+    private static final byte SIZE_SC_TICKET= SIZE_SC_TICKET_ID+HmacSha160.HASHSIZE;
+    private static final byte OFFSET_SC_TICKET_USES= SIZE_SC_TICKET; // resumptions left, the ticket is invalid if 0
+    private static final byte SIZE_SC_NONCE= 16;
+    // precomputed ephemeral keys: the private keys are key objects (transient if supported) and their state is in RAM,
+    // so a pool is lost at card reset. sc_key_pool= [size(2b) | InitiateSecureChannel response prefix] * SC_POOL_SIZE
+    // where the response prefix is [coordx_size(2b) | coordx | sig_size(2b) | self-sig | sig2_size(2b) | authentikey-sig]
+    private ECPrivateKey[] sc_pool_keys;
+    private byte[] sc_pool_state;
+    private byte[] sc_key_pool;
+    private static final byte SC_POOL_SIZE= 4;
+    private static final byte SC_POOL_EMPTY= 0x00;
+    private static final byte SC_POOL_READY= 0x01;
+    private static final short SC_POOL_OFFSET_SIZE= 0;
+    private static final short SC_POOL_OFFSET_RESPONSE= 2;
+    private static final short SC_POOL_ENTRY_SIZE= SC_POOL_OFFSET_RESPONSE+2+32+2+72+2+72;
+    // MAC of secure channel commands: HMAC-SHA1 in software, or a native Signature engine if available
+    private static final byte SC_MAC_HMAC_SHA1= 0x00;
+    private static final byte SC_MAC_HMAC_SHA256= 0x01;
+    private static final byte SC_MAC_AES_CMAC= 0x02;
+    private static final byte SC_AEAD_AES_CTR_CMAC= 0x03; // AES-CTR encryption and AES-CMAC of commands & responses
+    private byte[] sc_mac_mode; // negotiated for the session, HMAC-SHA1 by default
+    private byte[] sc_mac_ctx; // HmacSha160 context of the sc_buffer mackey
+    private Signature sc_hmac_sha256; // null if not supported
+    private HMACKey sc_hmac_key;
+    private Signature sc_cmac; // null if not supported
+    private AESKey sc_cmac_key;
+    private Cipher sc_aes128_ecb; // keystream of the AES-CTR mode
 
     //private ECPrivateKey bip32_authentikey; // key used to authenticate data
     
@@ -479,6 +593,8 @@ public class SeedKeeper extends javacard.framework.Applet {
 
         ublk_pins = new OwnerPIN[MAX_NUM_PINS];
         pins = new OwnerPIN[MAX_NUM_PINS];
+        om_vaults = new ObjectManager[MAX_NUM_PINS];
+        om_trees = new MerkleTree[MAX_NUM_PINS];
 
         // DONE: pass in starting PIN setting with instantiation
         /* Setting initial PIN n.0 value */
@@ -491,6 +607,26 @@ public class SeedKeeper extends javacard.framework.Applet {
         } catch (SystemException e) {
             ISOException.throwIt(SW_UNSUPPORTED_FEATURE);// unsupported feature => use a more recent card!
         }
+        try {
+            active_vault = JCSystem.makeTransientByteArray((short) 1, JCSystem.CLEAR_ON_DESELECT);
+        } catch (SystemException e) {
+            active_vault = new byte[1];
+        }
+        try {
+            cursors = JCSystem.makeTransientByteArray(CURSORS_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        } catch (SystemException e) {
+            cursors = new byte[CURSORS_SIZE];
+        }
+        try {
+            chain_state = JCSystem.makeTransientShortArray(CHAIN_STATE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        } catch (SystemException e) {
+            chain_state = new short[CHAIN_STATE_SIZE];
+        }
+        try {
+            io_state = JCSystem.makeTransientShortArray(IO_STATE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        } catch (SystemException e) {
+            io_state = new short[IO_STATE_SIZE];
+        }
         
         // Temporary working arrays
         try {
@@ -513,6 +649,11 @@ public class SeedKeeper extends javacard.framework.Applet {
             // recommended as after ~ 100000 writes it will kill the EEPROM cells...
             recvBuffer = new byte[EXT_APDU_BUFFER_SIZE];
         }
+        try {
+            batchBuffer = JCSystem.makeTransientByteArray(BATCH_BUFFER_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        } catch (SystemException e) {
+            batchBuffer = new byte[BATCH_BUFFER_SIZE];
+        }
 
         // shared cryptographic objects
         randomData = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
@@ -538,11 +679,63 @@ public class SeedKeeper extends javacard.framework.Applet {
         } catch (SystemException e) {
             secret_sc_buffer = new byte[SIZE_SC_BUFFER];
         }
+        try {
+            sc_mac_ctx = JCSystem.makeTransientByteArray(HmacSha160.CTX_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        } catch (SystemException e) {
+            sc_mac_ctx = new byte[HmacSha160.CTX_SIZE];
+        }
+        try {
+            secret_sc_mac_ctx = JCSystem.makeTransientByteArray(HmacSha160.CTX_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        } catch (SystemException e) {
+            secret_sc_mac_ctx = new byte[HmacSha160.CTX_SIZE];
+        }
+        sc_ticket = new byte[(short)(SIZE_SC_TICKET+1)];
+        sc_key_pool= new byte[(short)(SC_POOL_SIZE*SC_POOL_ENTRY_SIZE)];
+        try {
+            sc_pin_nonce = JCSystem.makeTransientByteArray((short)(1+SIZE_SC_NONCE), JCSystem.CLEAR_ON_DESELECT);
+        } catch (SystemException e) {
+            sc_pin_nonce = new byte[(short)(1+SIZE_SC_NONCE)];
+        }
+        try {
+            sc_pool_state = JCSystem.makeTransientByteArray(SC_POOL_SIZE, JCSystem.CLEAR_ON_RESET);
+        } catch (SystemException e) {
+            sc_pool_state = new byte[SC_POOL_SIZE];
+        }
+        try {
+            sc_mac_mode = JCSystem.makeTransientByteArray((short) 1, JCSystem.CLEAR_ON_DESELECT);
+        } catch (SystemException e) {
+            sc_mac_mode = new byte[1];
+        }
+        try {
+            sc_hmac_sha256= Signature.getInstance(Signature.ALG_HMAC_SHA_256, false);
+            sc_hmac_key= (HMACKey) KeyBuilder.buildKey(KeyBuilder.TYPE_HMAC, KeyBuilder.LENGTH_HMAC_SHA_256_BLOCK_64, false);
+        } catch (CryptoException e) {
+            sc_hmac_sha256= null;
+        }
+        try {
+            sc_cmac= Signature.getInstance(ALG_AES_CMAC_128, false);
+            sc_cmac_key= (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+        } catch (CryptoException e) {
+            sc_cmac= null;
+        }
         sc_sessionkey= (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false); // todo: make transient?
         sc_ephemeralkey= (ECPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE, LENGTH_EC_FP_256, false);
+        Secp256k1.setCommonCurveParameters(sc_ephemeralkey);
+        sc_pool_keys= new ECPrivateKey[SC_POOL_SIZE];
+        for (byte i=0; i<SC_POOL_SIZE; i++){
+            try {
+                sc_pool_keys[i]= (ECPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE_TRANSIENT_RESET, LENGTH_EC_FP_256, false);
+            } catch (CryptoException e) {
+                sc_pool_keys[i]= (ECPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE, LENGTH_EC_FP_256, false);
+            }
+            Secp256k1.setCommonCurveParameters(sc_pool_keys[i]);
+        }
         sc_aes128_cbc= Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false); 
+        sc_aes128_ecb= Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_ECB_NOPAD, false); 
         secret_sc_sessionkey= (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
         secret_sc_aes128_cbc= Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+        image_target_pubkey= (ECPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PUBLIC, LENGTH_EC_FP_256, false);
+        Secp256k1.setCommonCurveParameters(image_target_pubkey);
 
         install_step = 1;
 
@@ -552,16 +745,12 @@ public class SeedKeeper extends javacard.framework.Applet {
     } // end of constructor
 
     private boolean complete_install() {
-        // Secret objects manager
-        om_secrets= new ObjectManager(OM_SIZE);
+        // Secret objects manager & logger are allocated during setup, once their size is known
         randomData.generateData(recvBuffer, (short)0, (short)16);
         om_encryptkey= (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
         om_encryptkey.setKey(recvBuffer, (short)0); // data must be exactly 16 bytes long
         om_aes128_ecb= Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_ECB_NOPAD, false);
 
-        // logger
-        logger= new Logger(LOGGER_NBRECORDS);
-
         // card label
         card_label= new byte[MAX_CARD_LABEL_SIZE];
 
@@ -600,14 +789,54 @@ public class SeedKeeper extends javacard.framework.Applet {
             complete_install();
         }
 
+        // recover from a card tear during a previous object creation/deletion
+        for (byte i = (byte) 0; i < MAX_NUM_PINS; i++){
+            if (om_vaults[i] == null)
+                continue;
+            boolean consistent= true;
+            if (om_vaults[i].isDirty())
+                consistent= om_vaults[i].checkConsistency();
+            if (!consistent || om_trees[i].isDirty())
+                rebuildMerkleTree(i);
+        }
+        
+        // log a command torn before its record was written
+        if (logger!=null)
+            logger.recoverLog();
+
         return true;
     }
 
     public void deselect() {
         LogOutAll();
+        // a multi-step operation cannot complete after deselection
+        if (logger!=null)
+            logger.commitLog((short)0x0000);
     }
 
     public void process(APDU apdu) {
+        try{
+            processCommand(apdu);
+        } catch (ISOException e){
+            commitLog(e.getReason());
+            throw e;
+        } catch (RuntimeException e){
+            commitLog(ISO7816.SW_UNKNOWN);
+            throw e;
+        }
+        commitLog(ISO7816.SW_NO_ERROR);
+    }
+    
+    /** 
+     * Writes the log record staged by the command, once the operation is over 
+     * (multi-step operations keep their record staged until the lock is released).
+     */
+    private void commitLog(short sw){
+        if ((logger!=null) && (!lock_enabled))
+            logger.commitLog(sw);
+    }
+
+    private void processCommand(APDU apdu) {
         // APDU object carries a byte array (buffer) to
         // transfer incoming and outgoing APDU header
         // and data bytes between card and CAD
@@ -626,6 +855,17 @@ public class SeedKeeper extends javacard.framework.Applet {
         // check SELECT APDU command
         if ((buffer[ISO7816.OFFSET_CLA] == 0) && (buffer[ISO7816.OFFSET_INS] == (byte) 0xA4))
             return;
+        
+        // continue a chained response, any other command aborts it
+        if (buffer[ISO7816.OFFSET_INS] == INS_GET_RESPONSE){
+            if (chain_state[CHAIN_INS] != INS_PRINT_LOGS)
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            sendLogsChunk(apdu, buffer);
+            return;
+        }
+        if ((chain_state[CHAIN_INS]!=(short)0) && (sc_mac_mode[0]==SC_AEAD_AES_CTR_CMAC))
+            sc_cmac.init(sc_cmac_key, Signature.MODE_SIGN); // drop the mac of the dump
+        chain_state[CHAIN_INS]= (short)0;
         // verify the rest of commands have the
         // correct CLA byte, which specifies the
         // command structure
@@ -660,9 +900,7 @@ public class SeedKeeper extends javacard.framework.Applet {
         
         // prepare APDU buffer
         if (ins != INS_GET_STATUS){
-            short bytesLeft = Util.makeShort((byte) 0x00, buffer[ISO7816.OFFSET_LC]);
-            if (bytesLeft != apdu.setIncomingAndReceive())
-                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            receiveCommand(apdu, buffer);
         }
 
         // only 3 commands are allowed, the others must be wrapped in a secure channel command
@@ -671,6 +909,8 @@ public class SeedKeeper extends javacard.framework.Applet {
         if (ins == INS_GET_STATUS){
             sizeout= GetStatus(apdu, buffer);
             apdu.setOutgoingAndSend((short) 0, sizeout);
+            // the response is sent: precompute a key for the next InitiateSecureChannel
+            refillEphemeralKeyPool();
             return;
         }
         else if (ins == INS_INIT_SECURE_CHANNEL){
@@ -678,10 +918,18 @@ public class SeedKeeper extends javacard.framework.Applet {
             apdu.setOutgoingAndSend((short) 0, sizeout);
             return;
         }
+        else if (ins == INS_RESUME_SECURE_CHANNEL){
+            sizeout= ResumeSecureChannel(apdu, buffer);
+            apdu.setOutgoingAndSend((short) 0, sizeout);
+            return;
+        }
+        else if (ins == INS_REKEY_SECURE_CHANNEL){
+            sizeout= RekeySecureChannel(apdu, buffer);
+            apdu.setOutgoingAndSend((short) 0, sizeout);
+            return;
+        }
         else if (ins == INS_PROCESS_SECURE_CHANNEL){
             sizeout= ProcessSecureChannel(apdu, buffer);
-            //todo: check if sizeout and buffer[ISO7816.OFFSET_LC] matches...
-            //if sizeout>4, buffer[ISO7816.OFFSET_LC] should be equal to (sizeout-5)
             //todo: remove padding ? (it is actually not used)          
         }
         else if (needs_secure_channel){
@@ -690,6 +938,56 @@ public class SeedKeeper extends javacard.framework.Applet {
 
         // at this point, the encrypted content has been deciphered in the buffer
         ins = buffer[ISO7816.OFFSET_INS];
+        if (ins == INS_PROCESS_BATCH)
+            sizeout= processBatch(apdu, buffer);
+        else
+            sizeout= processInstruction(apdu, buffer);
+
+        // Prepare buffer for return
+        if (sizeout==0){
+            return;
+        }
+        else if ((ins == INS_GET_STATUS) || (ins == INS_INIT_SECURE_CHANNEL)) {
+            apdu.setOutgoingAndSend((short) 0, sizeout);
+        }
+        else if (needs_secure_channel && (sc_mac_mode[0]==SC_AEAD_AES_CTR_CMAC)) { // encrypt & mac response
+            // [IV(16b) | size(2b) | data | mac(16b)] where the data is encrypted in place and the mac covers the rest
+            Util.arrayCopyNonAtomic(buffer, (short)0, buffer, SC_RESPONSE_OFFSET, sizeout);
+            Util.arrayCopyNonAtomic(sc_buffer, OFFSET_SC_IV, buffer, (short)0, SIZE_SC_IV);
+            Util.setShort(buffer, SIZE_SC_IV, sizeout);
+            cryptSecureChannelCtr(sc_buffer, OFFSET_SC_IV, (short)0, buffer, SC_RESPONSE_OFFSET, sizeout);
+            sizeout+= SC_RESPONSE_OFFSET;
+            sizeout+= sc_cmac.sign(buffer, (short)0, sizeout, buffer, sizeout);
+            apdu.setOutgoingAndSend((short) 0, sizeout);
+        }
+        else if (needs_secure_channel) { // encrypt response
+            // buffer contains the data (sizeout), moved after [IV(16b) | size(2b)] and encrypted in place
+            // for encryption, data is padded with PKCS#7
+            short blocksize=(short)16;
+            short padsize= (short) (blocksize - (sizeout%blocksize));
+
+            Util.arrayCopyNonAtomic(buffer, (short)0, buffer, SC_RESPONSE_OFFSET, sizeout);
+            Util.arrayFillNonAtomic(buffer, (short)(SC_RESPONSE_OFFSET+sizeout), padsize, (byte)padsize);//padding
+            Util.arrayCopyNonAtomic(sc_buffer, OFFSET_SC_IV, buffer, (short)0, SIZE_SC_IV);
+            sc_aes128_cbc.init(sc_sessionkey, Cipher.MODE_ENCRYPT, sc_buffer, OFFSET_SC_IV, SIZE_SC_IV);
+            short sizeoutCrypt=sc_aes128_cbc.doFinal(buffer, SC_RESPONSE_OFFSET, (short)(sizeout+padsize), buffer, SC_RESPONSE_OFFSET);
+            Util.setShort(buffer, SIZE_SC_IV, sizeoutCrypt);
+            sizeout= (short)(SC_RESPONSE_OFFSET+sizeoutCrypt);
+            //send back
+            apdu.setOutgoingAndSend((short) 0, sizeout);
+        }
+        else {
+            apdu.setOutgoingAndSend((short) 0, sizeout);
+        }
+
+    } // end of process method
+    
+    /** 
+     * Executes the command in the buffer, once deciphered, and returns the size of its response.
+     */
+    private short processInstruction(APDU apdu, byte[] buffer){
+        byte ins = buffer[ISO7816.OFFSET_INS];
+        short sizeout=(short)0;
         if (!setupDone && (ins != INS_SETUP)){
             if (personalizationDone ||
                     ((ins != INS_VERIFY_PIN) 
@@ -761,9 +1059,21 @@ public class SeedKeeper extends javacard.framework.Applet {
             case INS_PRINT_LOGS:
                 sizeout= printLogs(apdu, buffer);
                 break;
+            case INS_GET_MERKLE_NODE:
+                sizeout= getMerkleNode(apdu, buffer);
+                break;
+            case INS_EXPORT_STORE_IMAGE:
+                sizeout= exportStoreImage(apdu, buffer);
+                break;
+            case INS_RESTORE_STORE_IMAGE:
+                sizeout= restoreStoreImage(apdu, buffer);
+                break;
             case INS_EXPORT_AUTHENTIKEY:
                 sizeout= getAuthentikey(apdu, buffer);
                 break;    
+            case INS_GET_STATISTICS:
+                sizeout= getStatistics(apdu, buffer);
+                break;
             //PKI
             case INS_EXPORT_PKI_PUBKEY:
                 sizeout= export_PKI_pubkey(apdu, buffer);
@@ -787,35 +1097,55 @@ public class SeedKeeper extends javacard.framework.Applet {
             default:
                 ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
         }//end of switch
-
-        // Prepare buffer for return
-        if (sizeout==0){
-            return;
-        }
-        else if ((ins == INS_GET_STATUS) || (ins == INS_INIT_SECURE_CHANNEL)) {
-            apdu.setOutgoingAndSend((short) 0, sizeout);
+        return sizeout;
+    }
+    
+    /**
+     * Receives the data of a short or extended command. The data of an extended command
+     * [CLA | INS | P1 | P2 | 00 | Lc(2b) | data] is moved to ISO7816.OFFSET_CDATA, so that
+     * commands are parsed the same way, with their size in io_state[IO_DATA_SIZE].
+     * The whole command must fit in the APDU buffer of the card, which is checked at setup 
+     * (MIN_APDU_BUFFER_SIZE) and reported by GetStatus: larger commands fail with SW_WRONG_LENGTH.
+     * Responses are limited by the APDU buffer too: io_state[IO_MAX_RESPONSE] is the size of the 
+     * largest response, once encrypted with the secure channel if needed.
+     */
+    private void receiveCommand(APDU apdu, byte[] buffer){
+        short received= apdu.setIncomingAndReceive();
+        short size= apdu.getIncomingLength();
+        short offset= apdu.getOffsetCdata();
+        if (size > (short)(buffer.length-offset))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        while (received < size){
+            received+= apdu.receiveBytes((short)(offset+received));
         }
-        else if (needs_secure_channel) { // encrypt response
-            // buffer contains the data (sizeout)
-            // for encryption, data is padded with PKCS#7
-            short blocksize=(short)16;
-            short padsize= (short) (blocksize - (sizeout%blocksize));
-
-            Util.arrayCopy(buffer, (short)0, tmpBuffer, (short)0, sizeout);
-            Util.arrayFillNonAtomic(tmpBuffer, sizeout, padsize, (byte)padsize);//padding
-            Util.arrayCopy(sc_buffer, OFFSET_SC_IV, buffer, (short)0, SIZE_SC_IV);
-            sc_aes128_cbc.init(sc_sessionkey, Cipher.MODE_ENCRYPT, sc_buffer, OFFSET_SC_IV, SIZE_SC_IV);
-            short sizeoutCrypt=sc_aes128_cbc.doFinal(tmpBuffer, (short)0, (short)(sizeout+padsize), buffer, (short) (18));
-            Util.setShort(buffer, (short)16, sizeoutCrypt);
-            sizeout= (short)(18+sizeoutCrypt);
-            //send back
-            apdu.setOutgoingAndSend((short) 0, sizeout);
+        io_state[IO_DATA_SIZE]= size;
+        short max_size= (short)256; // short response
+        if (offset != ISO7816.OFFSET_CDATA){
+            Util.arrayCopyNonAtomic(buffer, offset, buffer, ISO7816.OFFSET_CDATA, size);
+            max_size= (short)buffer.length;
         }
-        else {
-            apdu.setOutgoingAndSend((short) 0, sizeout);
+        if (needs_secure_channel){
+            if (sc_mac_mode[0]==SC_AEAD_AES_CTR_CMAC){
+                // [IV(16b) | size(2b) | encrypted response | mac(16b)]
+                max_size= (short)(max_size-SC_RESPONSE_OFFSET-AES_BLOCKSIZE);
+            }else{
+                // [IV(16b) | size(2b) | encrypted response with at least 1 byte of padding]
+                max_size= (short)((short)((short)(max_size-SC_RESPONSE_OFFSET) & (short)0xFFF0) - 1);
+            }
         }
-
-    } // end of process method
+        io_state[IO_MAX_RESPONSE]= max_size;
+    }
+    
+    /** 
+     * Returns the size of the chunks of an export: chunk_size for short APDUs, or the largest 
+     * multiple of 16 that fits a response with the trailer_size bytes that follow a chunk.
+     */
+    private short getChunkSize(short chunk_size, short trailer_size){
+        if (io_state[IO_MAX_RESPONSE]<=MAX_PAGE_SIZE)
+            return chunk_size;
+        short size= (short)((short)(io_state[IO_MAX_RESPONSE]-trailer_size) & (short)0xFFF0);
+        return (size>chunk_size)? size : chunk_size;
+    }
 
     /** 
      * Setup APDU - initialize the applet and reserve memory
@@ -829,18 +1159,32 @@ public class SeedKeeper extends javacard.framework.Applet {
      *        pin_tries1(1b) | ublk_tries1(1b) | pin1_length(1b) | pin1 | ublk1_length(1b) | ublk1 | 
      *        RFU(2b) | RFU(2b) | RFU(3b) |
      *        option_flags(2b - RFU) | 
+     *        om_size(2b - optional) | logger_nbrecords(2b - optional) | 
+     *        vault_size(2b - optional)
      *        ]
      * where: 
      *      default_pin: {0x4D, 0x75, 0x73, 0x63, 0x6C, 0x65, 0x30, 0x30};
      *      pin_tries: max number of PIN try allowed before the corresponding PIN is blocked
      *      ublk_tries:  max number of UBLK(unblock) try allowed before the PUK is blocked
      *      option_flags: flags to define up to 16 additional options       
+     *          0x0001: partitioned vaults, each PIN owns a separate secret store
+     *      om_size: size in bytes of the secret store (default OM_SIZE if missing or 0)
+     *      logger_nbrecords: number of records in the log ring (default LOGGER_NBRECORDS if missing or 0)
+     *      vault_size: default size in bytes of the vaults of PIN1 and subsequently created PINs,
+     *          if partitioned vaults are enabled (default OM_VAULT_SIZE if missing or 0)
+     * 
+     * The secret store and the logger are only allocated during the first setup: 
+     * after a reset to factory, the sizes provided are ignored.
+     * Setup fails with SW_FUNC_NOT_SUPPORTED if the APDU buffer of the card is smaller than 
+     * MIN_APDU_BUFFER_SIZE (it cannot be checked from install()).
      * return: none
      */
     private short setup(APDU apdu, byte[] buffer) {
+        if ((short)buffer.length < MIN_APDU_BUFFER_SIZE)
+            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
         personalizationDone=true;// perso PKI should not be modifiable once setup is done
         
-        short bytesLeft = Util.makeShort((byte) 0x00, buffer[ISO7816.OFFSET_LC]);
+        short bytesLeft = io_state[IO_DATA_SIZE];
         short base = (short) (ISO7816.OFFSET_CDATA);
         byte numBytes = buffer[base++];
         bytesLeft--;
@@ -930,8 +1274,42 @@ public class SeedKeeper extends javacard.framework.Applet {
             bytesLeft-=(short)2;
         }
         
+        // parse store & logger capacities
+        short om_size= OM_SIZE;
+        short logger_nbrecords= LOGGER_NBRECORDS;
+        if (bytesLeft>=4){
+            short size= Util.getShort(buffer, base);
+            if (size!=0)
+                om_size= size;
+            base+=(short)2;
+            size= Util.getShort(buffer, base);
+            if (size!=0)
+                logger_nbrecords= size;
+            base+=(short)2;
+            bytesLeft-=(short)4;
+        }
+        om_vault_size= OM_VAULT_SIZE;
+        if (bytesLeft>=2){
+            short size= Util.getShort(buffer, base);
+            if (size!=0)
+                om_vault_size= size;
+            base+=(short)2;
+            bytesLeft-=(short)2;
+        }
+        
+        // memory cannot be reclaimed, so store & logger are only allocated once
+        createVault((byte)0, om_size);
+        om_secrets= om_vaults[0];
+        if (logger==null){
+            if ((logger_nbrecords < 1) || (logger_nbrecords > Logger.MAX_NBRECORDS))
+                ISOException.throwIt(SW_INVALID_PARAMETER);
+            checkAvailableMemory((short)(logger_nbrecords*Logger.LOG_SIZE));
+            logger= new Logger(logger_nbrecords, MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false));
+        }
+        if ((option_flags & OPTION_PARTITIONED_VAULTS) != 0)
+            createVault((byte)1, om_vault_size);
+        
         logged_ids = 0x0000; // No identities logged in
-        om_nextid= (short)0;
         setupDone = true;
         return (short)0;//nothing to return
     }
@@ -946,6 +1324,92 @@ public class SeedKeeper extends javacard.framework.Applet {
         logged_ids &= (short) ~(0x0001 << id_nb);
     }
 
+    /** 
+     * Checks that size bytes can be allocated in persistent memory,
+     * while keeping MIN_FREE_PERSISTENT_MEMORY available for later use. 
+     */
+    private void checkAvailableMemory(short size) {
+        short avail= JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_PERSISTENT); // saturates at 0x7FFF
+        if ((avail < size) || ((short)(avail-size) < MIN_FREE_PERSISTENT_MEMORY))
+            ISOException.throwIt(SW_NO_MEMORY_LEFT);
+    }
+    
+    /** 
+     * Allocates the vault owned by a PIN, if not already done.
+     * Vault memory cannot be reclaimed, it is reused if the PIN is created again.
+     */
+    private void createVault(byte pin_nb, short size) {
+        if (om_vaults[pin_nb]!=null)
+            return;
+        if (size < OM_MIN_SIZE)
+            ISOException.throwIt(SW_INVALID_PARAMETER);
+        // tree first: a vault always has a tree
+        if (om_trees[pin_nb]==null){
+            checkAvailableMemory(MerkleTree.getTreeSize(size));
+            om_trees[pin_nb]= new MerkleTree(sha256, size);
+        }
+        checkAvailableMemory(size);
+        om_vaults[pin_nb]= new ObjectManager(size);
+    }
+    
+    /** 
+     * Stores the secret object prepared in recvBuffer in a vault and updates the vault's Merkle tree.
+     * 
+     * @return the id of the new object
+     */
+    private short createSecretObject(ObjectManager om, short size) {
+        MerkleTree tree= om_trees[active_vault[0]];
+        short id= om.allocateId(OM_TYPE);
+        tree.setDirty(); // tree is rebuilt if the card is torn before it is updated
+        om.createObject(OM_TYPE, id, recvBuffer, (short)0, size);
+        computeSecretHash(recvBuffer, (short)0, tmpBuffer2, (short)0);
+        tree.addObject(tmpBuffer2, (short)0);
+        return id;
+    }
+    
+    /** 
+     * Computes the Merkle tree hash of a secret from its header:
+     * SHA256(type(1b) | export_control(1b) | fingerprint(4b) | RFU1(1b) | RFU2(1b) | label_size(1b) | label)
+     * Ids, origin and export counters are not hashed, as they differ between a card and its backup.
+     */
+    private void computeSecretHash(byte[] header, short header_offset, byte[] hash, short hash_offset) {
+        sha256.reset();
+        sha256.update(header, (short)(header_offset+SECRET_OFFSET_TYPE), (short)1);
+        sha256.update(header, (short)(header_offset+SECRET_OFFSET_EXPORT_CONTROL), (short)1);
+        short label_size= Util.makeShort((byte)0, header[(short)(header_offset+SECRET_OFFSET_LABEL_SIZE)]);
+        sha256.doFinal(header, (short)(header_offset+SECRET_OFFSET_FINGERPRINT), 
+                (short)(SECRET_HEADER_SIZE-SECRET_OFFSET_FINGERPRINT+label_size), hash, hash_offset);
+    }
+    
+    /** Rebuilds the Merkle tree of a vault from all the objects it contains */
+    private void rebuildMerkleTree(byte pin_nb) {
+        ObjectManager om= om_vaults[pin_nb];
+        MerkleTree tree= om_trees[pin_nb];
+        tree.clear();
+        short base= om.getFirstObject();
+        while (base!=MemoryManager.NULL_OFFSET){
+            short label_size= Util.makeShort((byte)0, om.getObjectByte(base, SECRET_OFFSET_LABEL_SIZE));
+            om.getObjectData(base, (short)0, recvBuffer, (short)0, (short)(SECRET_HEADER_SIZE+label_size));
+            computeSecretHash(recvBuffer, (short)0, tmpBuffer2, (short)0);
+            tree.addLeaf(tmpBuffer2, (short)0);
+            base= om.getNextObject(base);
+        }
+        Util.arrayFillNonAtomic(recvBuffer, (short)0, (short)(SECRET_HEADER_SIZE+MAX_LABEL_SIZE), (byte)0);
+        tree.computeNodes();
+    }
+    
+    /** 
+     * Returns the vault (secret store) used by secret operations and checks that its PIN has been verified.
+     * Without partitioned vaults, all secrets are stored in the vault of PIN[0].
+     * With partitioned vaults, the vault is the one of the last PIN successfully verified.
+     */
+    private ObjectManager getVault() {
+        byte pin_nb= active_vault[0];
+        if ((pins[pin_nb]==null) || (!pins[pin_nb].isValidated()) || (om_vaults[pin_nb]==null))
+            ISOException.throwIt(SW_UNAUTHORIZED);
+        return om_vaults[pin_nb];
+    }
+    
     /** Checks if PIN policies are satisfied for a PIN code */
     private boolean CheckPINPolicy(byte[] pin_buffer, short pin_offset, byte pin_size) {
         if ((pin_size < PIN_MIN_SIZE) || (pin_size > PIN_MAX_SIZE))
@@ -954,6 +1418,9 @@ public class SeedKeeper extends javacard.framework.Applet {
     }
 
     private void resetLock(){
+        // erase the objects staged by an incomplete store image restore
+        if ((lock_ins==INS_RESTORE_STORE_IMAGE) && (om_vaults[active_vault[0]]!=null))
+            om_vaults[active_vault[0]].abortStaging();
         //reset data
         Util.arrayFillNonAtomic(recvBuffer, (short)0, lock_recv_offset, (byte)0x00);
         // Release lock
@@ -974,18 +1441,33 @@ public class SeedKeeper extends javacard.framework.Applet {
     /** Erase all user data */
     private boolean resetToFactory(){
         
+        // nothing to erase if setup was never done
+        if (om_secrets==null)
+            return false;
+        
         //TODO        
         // logs
         // currently, we do NOT erase logs, but we add an entry for the reset
         logger.createLog(INS_RESET_TO_FACTORY, (short)-1, (short)-1, (short)0x0000 );
         
-        // reset all secrets in store
-        om_secrets.resetObjectManager(true);
+        // reset all secrets in all vaults
+        for (byte i = (byte) 0; i < MAX_NUM_PINS; i++){
+            if (om_vaults[i] != null){
+                om_vaults[i].resetObjectManager(true);
+                rebuildMerkleTree(i);
+            }
+        }
         
         // reset card label
         card_label_size=0;
         Util.arrayFillNonAtomic(card_label, (short)0, (short)card_label.length, (byte)0);
         
+        // secure channel resumption: the ticket is revoked first
+        sc_ticket[OFFSET_SC_TICKET_USES]= 0;
+        Util.arrayFillNonAtomic(sc_ticket, (short)0, (short)sc_ticket.length, (byte)0);
+        Util.arrayFillNonAtomic(sc_pool_state, (short)0, SC_POOL_SIZE, SC_POOL_EMPTY);
+        Util.arrayFillNonAtomic(sc_key_pool, (short)0, (short)sc_key_pool.length, (byte)0);
+        
         // setup
         pins[0].update(PIN_INIT_VALUE, (short) 0, (byte) PIN_INIT_VALUE.length);
         setupDone=false;
@@ -1010,9 +1492,8 @@ public class SeedKeeper extends javacard.framework.Applet {
      * return: [ id(2b) | fingerprint(4b) ]
      */
     private short generateMasterseed(APDU apdu, byte[] buffer){
-        // check that PIN[0] has been entered previously
-        if (!pins[0].isValidated())
-            ISOException.throwIt(SW_UNAUTHORIZED);
+        // check that the PIN owning the vault has been entered previously
+        ObjectManager om= getVault();
         
         // log operation
         logger.createLog(INS_GENERATE_MASTERSEED, (short)-1, (short)-1, (short)0x0000);
@@ -1061,20 +1542,14 @@ public class SeedKeeper extends javacard.framework.Applet {
         short enc_size= om_aes128_ecb.doFinal(buffer, (short)0, (short)(1+seed_size+padsize), recvBuffer, recv_offset);
         recv_offset+=enc_size; //recv_offset+= seed_size;
         
-        // Check if object exists
-        while (om_secrets.exists(OM_TYPE, om_nextid)){
-            om_nextid++;
-        }
-        short base= om_secrets.createObject(OM_TYPE, om_nextid, recv_offset);
-        om_secrets.setObjectData(base, (short)0, recvBuffer, (short)0, recv_offset);
+        short id= createSecretObject(om, recv_offset);
         
         // log operation (todo: fill log as soon as available)
-        logger.updateLog(INS_GENERATE_MASTERSEED, om_nextid, (short)-1, (short)0x9000);
+        logger.updateLog(INS_GENERATE_MASTERSEED, id, (short)-1, (short)0x9000);
         
         // Fill the buffer
-        Util.setShort(buffer, (short) 0, om_nextid);
+        Util.setShort(buffer, (short) 0, id);
         Util.arrayCopyNonAtomic(recvBuffer, SECRET_OFFSET_FINGERPRINT, buffer, (short)2, SECRET_FINGERPRINT_SIZE);
-        om_nextid++;
         
         // TODO: sign id with authentikey?
         // Send response
@@ -1091,9 +1566,8 @@ public class SeedKeeper extends javacard.framework.Applet {
      * return: [ id(2b) | fingerprint(4b) ]
      */
     private short generate2FASecret(APDU apdu, byte[] buffer){
-        // check that PIN[0] has been entered previously
-        if (!pins[0].isValidated())
-            ISOException.throwIt(SW_UNAUTHORIZED);
+        // check that the PIN owning the vault has been entered previously
+        ObjectManager om= getVault();
         
         // log operation
         logger.createLog(INS_GENERATE_2FA_SECRET, (short)-1, (short)-1, (short)0x0000);
@@ -1138,20 +1612,14 @@ public class SeedKeeper extends javacard.framework.Applet {
         short enc_size= om_aes128_ecb.doFinal(buffer, (short)0, (short)(1+SIZE_2FA+padsize), recvBuffer, recv_offset);
         recv_offset+=enc_size; //recv_offset+= SIZE_2FA;
         
-        // Check if object exists
-        while (om_secrets.exists(OM_TYPE, om_nextid)){
-            om_nextid++;
-        }
-        short base= om_secrets.createObject(OM_TYPE, om_nextid, recv_offset);
-        om_secrets.setObjectData(base, (short)0, recvBuffer, (short)0, recv_offset);
+        short id= createSecretObject(om, recv_offset);
         
         // log operation (todo: fill log as soon as available)
-        logger.updateLog(INS_GENERATE_2FA_SECRET, om_nextid, (short)-1, (short)0x9000);
+        logger.updateLog(INS_GENERATE_2FA_SECRET, id, (short)-1, (short)0x9000);
         
         // Fill the buffer
-        Util.setShort(buffer, (short) 0, om_nextid);
+        Util.setShort(buffer, (short) 0, id);
         Util.arrayCopyNonAtomic(recvBuffer, SECRET_OFFSET_FINGERPRINT, buffer, (short)2, SECRET_FINGERPRINT_SIZE);
-        om_nextid++;
         
         // TODO: sign id with authentikey?
         // Send response
@@ -1173,15 +1641,14 @@ public class SeedKeeper extends javacard.framework.Applet {
      *      (final) [ id(2b) | fingerprint(4b) ]
      */
     private short importSecret(APDU apdu, byte[] buffer){
-        // check that PIN[0] has been entered previously
-        if (!pins[0].isValidated())
-            ISOException.throwIt(SW_UNAUTHORIZED);
+        // check that the PIN owning the vault has been entered previously
+        ObjectManager om= getVault();
         
         lock_transport_mode= buffer[ISO7816.OFFSET_P1];
         if (lock_transport_mode != SECRET_EXPORT_ALLOWED && lock_transport_mode != SECRET_EXPORT_SECUREONLY)
             ISOException.throwIt(SW_INVALID_PARAMETER);
         
-        short bytes_left = Util.makeShort((byte) 0x00, buffer[ISO7816.OFFSET_LC]);
+        short bytes_left = io_state[IO_DATA_SIZE];
         short buffer_offset = ISO7816.OFFSET_CDATA;
         short recv_offset = (short)0;
         short data_size= (short)0;
@@ -1235,13 +1702,13 @@ public class SeedKeeper extends javacard.framework.Applet {
                         ISOException.throwIt(SW_INVALID_PARAMETER);
                     
                     // get pubkey
-                    short base_pubkey= om_secrets.getBaseAddress(OM_TYPE, lock_id_pubkey);
+                    short base_pubkey= om.getBaseAddress(OM_TYPE, lock_id_pubkey);
                     if (base_pubkey==(short)0xFFFF){
                         resetLock();
                         ISOException.throwIt(SW_OBJECT_NOT_FOUND);
                     }
-                    short obj_pubkey_size= om_secrets.getSizeFromAddress(base_pubkey);
-                    om_secrets.getObjectData(base_pubkey, (short)0, recvBuffer, (short)0, obj_pubkey_size);
+                    short obj_pubkey_size= om.getSizeFromAddress(base_pubkey);
+                    om.getObjectData(base_pubkey, (short)0, recvBuffer, (short)0, obj_pubkey_size);
                     byte pubkey_type= recvBuffer[SECRET_OFFSET_TYPE];
                     if  (pubkey_type!=SECRET_TYPE_PUBKEY){
                         resetLock();
@@ -1266,6 +1733,7 @@ public class SeedKeeper extends javacard.framework.Applet {
                     // derive secret_sessionkey & secret_mackey
                     HmacSha160.computeHmacSha160(recvBuffer, (short)1, (short)32, SECRET_CST_SC, (short)6, (short)6, recvBuffer, (short)33);
                     Util.arrayCopyNonAtomic(recvBuffer, (short)33, secret_sc_buffer, OFFSET_SC_MACKEY, SIZE_SC_MACKEY);
+                    HmacSha160.setKey(secret_sc_buffer, OFFSET_SC_MACKEY, SIZE_SC_MACKEY, secret_sc_mac_ctx, (short)0);
                     HmacSha160.computeHmacSha160(recvBuffer, (short)1, (short)32, SECRET_CST_SC, (short)0, (short)6, recvBuffer, (short)33);
                     secret_sc_sessionkey.setKey(recvBuffer,(short)33); // AES-128: 16-bytes key!!   
                     secret_sc_aes128_cbc.init(secret_sc_sessionkey, Cipher.MODE_DECRYPT, buffer, buffer_offset, SIZE_SC_IV);
@@ -1390,7 +1858,7 @@ public class SeedKeeper extends javacard.framework.Applet {
                         resetLock();
                         ISOException.throwIt(SW_INVALID_PARAMETER);}
                     secret_sha256.doFinal(buffer, (short)(ISO7816.OFFSET_CDATA+2), data_size, buffer, (short)(buffer_offset+hmac_size) );
-                    short sign_size=HmacSha160.computeHmacSha160(secret_sc_buffer, OFFSET_SC_MACKEY, SIZE_SC_MACKEY, buffer, (short)(buffer_offset+hmac_size), (short)32, buffer, (short)(buffer_offset+hmac_size+32) );
+                    short sign_size=HmacSha160.computeHmacSha160(secret_sc_mac_ctx, (short)0, buffer, (short)(buffer_offset+hmac_size), (short)32, buffer, (short)(buffer_offset+hmac_size+32) );
                     if(Util.arrayCompare(buffer, buffer_offset, buffer, (short)(buffer_offset+hmac_size+32), (short)20) != (byte)0){
                         resetLock();
                         ISOException.throwIt(SW_SECURE_IMPORT_WRONG_MAC);}
@@ -1422,19 +1890,13 @@ public class SeedKeeper extends javacard.framework.Applet {
                 Util.arrayCopyNonAtomic(buffer, (short)0, recvBuffer, SECRET_OFFSET_FINGERPRINT, SECRET_FINGERPRINT_SIZE);
                 
                 // save to next available object
-                // Check if object exists
-                while (om_secrets.exists(OM_TYPE, om_nextid)){
-                    om_nextid++;
-                }
-                short base= om_secrets.createObject(OM_TYPE, om_nextid, recv_offset);
-                om_secrets.setObjectData(base, (short)0, recvBuffer, (short)0, recv_offset);
+                short id= createSecretObject(om, recv_offset);
                 
                 // log operation
-                logger.updateLog(INS_IMPORT_SECRET, om_nextid, lock_id_pubkey, (short)0x9000);
+                logger.updateLog(INS_IMPORT_SECRET, id, lock_id_pubkey, (short)0x9000);
                 
                 // Fill the R-APDU buffer
-                Util.setShort(buffer, (short) 0, om_nextid);
-                om_nextid++;
+                Util.setShort(buffer, (short) 0, id);
                 Util.arrayCopyNonAtomic(recvBuffer, SECRET_OFFSET_FINGERPRINT, buffer, (short)2, SECRET_FINGERPRINT_SIZE);
                 
                 // Release lock & send response
@@ -1471,20 +1933,19 @@ public class SeedKeeper extends javacard.framework.Applet {
      *             [data_blob_size(2b) | data_blob | hmac_size(1b) | hmac(20b)] if secure export 
      */
     private short exportSecret(APDU apdu, byte[] buffer){
-        // check that PIN[0] has been entered previously
-        if (!pins[0].isValidated())
-            ISOException.throwIt(SW_UNAUTHORIZED);
+        // check that the PIN owning the vault has been entered previously
+        ObjectManager om= getVault();
         
         lock_transport_mode= buffer[ISO7816.OFFSET_P1];
         if (lock_transport_mode != SECRET_EXPORT_ALLOWED && lock_transport_mode != SECRET_EXPORT_SECUREONLY)
             ISOException.throwIt(SW_INVALID_PARAMETER);
         
-        short bytes_left = Util.makeShort((byte) 0x00, buffer[ISO7816.OFFSET_LC]);
+        short bytes_left = io_state[IO_DATA_SIZE];
         short buffer_offset = ISO7816.OFFSET_CDATA;
         short recv_offset = (short)0;
         short dec_size=(short)0;
         short enc_size=(short)0;
-        short chunk_size=(short)128; // should be multiple of 16 // TODO: make static final
+        short chunk_size=getChunkSize(EXPORT_CHUNK_SIZE, (short)(2+2+72)); // [size | chunk | sig_size | sig]
         short label_size=(short)0;
         
         byte op = buffer[ISO7816.OFFSET_P2];
@@ -1514,14 +1975,14 @@ public class SeedKeeper extends javacard.framework.Applet {
                     lock_id_pubkey= Util.getShort(buffer, buffer_offset);
                     
                     // get pubkey
-                    short base_pubkey= om_secrets.getBaseAddress(OM_TYPE, lock_id_pubkey);
+                    short base_pubkey= om.getBaseAddress(OM_TYPE, lock_id_pubkey);
                     if (base_pubkey==(short)0xFFFF){
                         resetLock();
                         ISOException.throwIt(SW_OBJECT_NOT_FOUND);
                     }
                     
-                    short obj_pubkey_size= om_secrets.getSizeFromAddress(base_pubkey);
-                    om_secrets.getObjectData(base_pubkey, (short)0, recvBuffer, (short)0, obj_pubkey_size);
+                    short obj_pubkey_size= om.getSizeFromAddress(base_pubkey);
+                    om.getObjectData(base_pubkey, (short)0, recvBuffer, (short)0, obj_pubkey_size);
                     byte pubkey_type= recvBuffer[SECRET_OFFSET_TYPE];
                     if  (pubkey_type!=SECRET_TYPE_PUBKEY){
                         //todo: check if compressed keys are supported
@@ -1530,7 +1991,7 @@ public class SeedKeeper extends javacard.framework.Applet {
                     }
                     // update export_pubkey_counter in object
                     recvBuffer[SECRET_OFFSET_EXPORT_COUNTER]+=1;
-                    om_secrets.setObjectByte(base_pubkey, SECRET_OFFSET_EXPORT_COUNTER, recvBuffer[SECRET_OFFSET_EXPORT_COUNTER]);
+                    om.setObjectByte(base_pubkey, SECRET_OFFSET_EXPORT_COUNTER, recvBuffer[SECRET_OFFSET_EXPORT_COUNTER]);
                     
                     // get data 
                     label_size= Util.makeShort((byte)0, recvBuffer[SECRET_OFFSET_LABEL_SIZE]);
@@ -1551,6 +2012,7 @@ public class SeedKeeper extends javacard.framework.Applet {
                     // derive secret_sessionkey & secret_mackey
                     HmacSha160.computeHmacSha160(recvBuffer, (short)1, (short)32, SECRET_CST_SC, (short)6, (short)6, recvBuffer, (short)33);
                     Util.arrayCopyNonAtomic(recvBuffer, (short)33, secret_sc_buffer, OFFSET_SC_MACKEY, SIZE_SC_MACKEY);
+                    HmacSha160.setKey(secret_sc_buffer, OFFSET_SC_MACKEY, SIZE_SC_MACKEY, secret_sc_mac_ctx, (short)0);
                     HmacSha160.computeHmacSha160(recvBuffer, (short)1, (short)32, SECRET_CST_SC, (short)0, (short)6, recvBuffer, (short)33);
                     secret_sc_sessionkey.setKey(recvBuffer,(short)33); // AES-128: 16-bytes key!!   
                     randomData.generateData(secret_sc_buffer, OFFSET_SC_IV, SIZE_SC_IV);
@@ -1561,14 +2023,14 @@ public class SeedKeeper extends javacard.framework.Applet {
                 logger.createLog(INS_EXPORT_SECRET, lock_id, lock_id_pubkey, (short)0x0000);
                 
                 // copy to recvBuffer
-                short base= om_secrets.getBaseAddress(OM_TYPE, lock_id);
+                short base= om.getBaseAddress(OM_TYPE, lock_id);
                 if (base==(short)0xFFFF){
                     resetLock();
                     logger.updateLog(INS_EXPORT_SECRET, lock_id, lock_id_pubkey, SW_OBJECT_NOT_FOUND);
                     ISOException.throwIt(SW_OBJECT_NOT_FOUND);
                 }
-                short obj_size= om_secrets.getSizeFromAddress(base);
-                om_secrets.getObjectData(base, (short)0, recvBuffer, (short)0, obj_size);
+                short obj_size= om.getSizeFromAddress(base);
+                om.getObjectData(base, (short)0, recvBuffer, (short)0, obj_size);
                 // update export_nb in object
                 if (lock_transport_mode== SECRET_EXPORT_ALLOWED){
                     // check export rights
@@ -1578,11 +2040,11 @@ public class SeedKeeper extends javacard.framework.Applet {
                         ISOException.throwIt(SW_EXPORT_NOT_ALLOWED);
                     }
                     recvBuffer[SECRET_OFFSET_EXPORT_NBPLAIN]+=1; 
-                    om_secrets.setObjectByte(base, SECRET_OFFSET_EXPORT_NBPLAIN, recvBuffer[SECRET_OFFSET_EXPORT_NBPLAIN]);
+                    om.setObjectByte(base, SECRET_OFFSET_EXPORT_NBPLAIN, recvBuffer[SECRET_OFFSET_EXPORT_NBPLAIN]);
                 }
                 else{
                     recvBuffer[SECRET_OFFSET_EXPORT_NBSECURE]+=1; 
-                    om_secrets.setObjectByte(base, SECRET_OFFSET_EXPORT_NBSECURE, recvBuffer[SECRET_OFFSET_EXPORT_NBSECURE]);   
+                    om.setObjectByte(base, SECRET_OFFSET_EXPORT_NBSECURE, recvBuffer[SECRET_OFFSET_EXPORT_NBSECURE]);   
                 }
                 
                 // copy id & header to buffer
@@ -1661,7 +2123,7 @@ public class SeedKeeper extends javacard.framework.Applet {
                         
                         // hash then hmac
                         sign_size=secret_sha256.doFinal(buffer, (short) 2, dec_size, buffer, (short)(2+dec_size+2) );
-                        sign_size=HmacSha160.computeHmacSha160(secret_sc_buffer, OFFSET_SC_MACKEY, SIZE_SC_MACKEY, buffer, (short)(2+dec_size+2), sign_size, buffer, (short)(2+dec_size+2) );
+                        sign_size=HmacSha160.computeHmacSha160(secret_sc_mac_ctx, (short)0, buffer, (short)(2+dec_size+2), sign_size, buffer, (short)(2+dec_size+2) );
                         Util.setShort(buffer, (short)(2+dec_size), sign_size);
                     }
                     else{
@@ -1709,60 +2171,128 @@ public class SeedKeeper extends javacard.framework.Applet {
      * This function list all the objects stored in secure memory
      * Only the header data of each object is returned.
      * The sensitive data (which is encrypted) is not returned.
-     * This function must be initially called with the INIT option. 
-     * The function only returns one object information at a time and must be
-     * called in repetition until SW_SUCCESS is returned with no further data.
-     * Applications cannot rely on any special ordering of the sequence of returned objects. 
+     * Objects are listed in increasing id order, from a cursor: the lowest id to return. 
+     * This function must be initially called with the INIT option (cursor 0), then with 
+     * the PROCESS option and the cursor (last id returned + 1). The cursor is stateless: listings 
+     * may run concurrently and resume from any point, whatever objects are created or deleted.
+     * If the cursor is omitted, the card continues from the last object it returned.
+     * In single mode (p1=0x00), the function only returns one object information at a time and must be
+     * called in repetition until SW_SEQUENCE_END is returned.
+     * In page mode (p1=0x01), the function returns as many object informations as fit in a response,
+     * and must be called in repetition while the 'more' flag is set.
      * 
      * ins: 0xA6
-     * p1: 0x00 
-     * p2: OP_INIT (reset and get first entry) or OP_PROCESS (next entry)
-     * data: (none)
-     * return: [object_id(2b) | type(1b) | export_control(1b) | nb_export_plain(1b) | nb_export_secure(1b) | label_size(1b) | label ]
+     * p1: 0x00 (single) or 0x01 (page)
+     * p2: OP_INIT (get first entries) or OP_PROCESS (next entries)
+     * data: (none) or, with OP_PROCESS, [cursor(2b)]
+     * return: 
+     *      single: [object_id(2b) | header(13b) | label]
+     *      page: [more(1b) | nb_objects(1b) | (object_id(2b) | header(13b) | label) * nb_objects]
+     *      where header is [type(1b) | origin(1b) | export_control(1b) | nb_export_plain(1b) | nb_export_secure(1b) | 
+     *      export_counter(1b) | fingerprint(4b) | RFU(2b) | label_size(1b)]
      */
     private short listSecretHeaders(APDU apdu, byte[] buffer){
-        // check that PIN[0] has been entered previously
-        if (!pins[0].isValidated())
-            ISOException.throwIt(SW_UNAUTHORIZED);
+        // check that the PIN owning the vault has been entered previously
+        ObjectManager om= getVault();
         
-        short base=(short)0;
-        short labelsize=(short)0;
-        if (buffer[ISO7816.OFFSET_P2] == OP_INIT){
-            base = om_secrets.getFirstRecord();
-        }
-        else if (buffer[ISO7816.OFFSET_P2] == OP_PROCESS){
-            base = om_secrets.getNextRecord();
+        short cursor=(short)0;
+        byte op= buffer[ISO7816.OFFSET_P2];
+        if (op == OP_PROCESS){
+            if (io_state[IO_DATA_SIZE] >= 2)
+                cursor= Util.getShort(buffer, ISO7816.OFFSET_CDATA);
+            else
+                cursor= Util.getShort(cursors, CURSOR_OBJECTS);
         }
-        else{
+        else if (op != OP_INIT){
             ISOException.throwIt(SW_INCORRECT_P2);
         }
-        if (base==(short)0xFFFF)
-            ISOException.throwIt(SW_SEQUENCE_END);
+        short base= om.getObjectFrom(OM_TYPE, cursor);
+        
+        if (buffer[ISO7816.OFFSET_P1] == (byte)0x01){
+            if ((base==MemoryManager.NULL_OFFSET) && (op == OP_PROCESS))
+                ISOException.throwIt(SW_SEQUENCE_END);
+            short offset= (short)2;
+            byte nb_objects= (byte)0;
+            while (base!=MemoryManager.NULL_OFFSET){
+                if ((nb_objects>0) && 
+                        ((short)(offset+2+SECRET_HEADER_SIZE+Util.makeShort((byte)0, om.getObjectByte(base,SECRET_OFFSET_LABEL_SIZE))) > io_state[IO_MAX_RESPONSE]))
+                    break;
+                offset+= getSecretHeader(om, base, buffer, offset);
+                nb_objects++;
+                cursor= (short)(om.getIdFromAddress(base)+1);
+                base= (cursor==0) ? MemoryManager.NULL_OFFSET : om.getObjectFrom(OM_TYPE, cursor);
+            }
+            Util.setShort(cursors, CURSOR_OBJECTS, cursor);
+            buffer[0]= (base==MemoryManager.NULL_OFFSET) ? (byte)0 : (byte)1;
+            buffer[1]= nb_objects;
+            return offset;
+        }
         
-        short id= om_secrets.getIdFromAddress(base);
-        Util.setShort(buffer, (short)0, id);
-        labelsize= Util.makeShort((byte)0, om_secrets.getObjectByte(base,SECRET_OFFSET_LABEL_SIZE));
-        om_secrets.getObjectData(base, (short)0, buffer, (short)2, (short)(SECRET_HEADER_SIZE+labelsize));
+        if (base==MemoryManager.NULL_OFFSET)
+            ISOException.throwIt(SW_SEQUENCE_END);
+        Util.setShort(cursors, CURSOR_OBJECTS, (short)(om.getIdFromAddress(base)+1));
         
         //TODO: sign with authentikey 
+        return getSecretHeader(om, base, buffer, (short)0);
+    }
+    
+    /** Copies [object_id(2b) | header | label] of a secret and returns its size */
+    private short getSecretHeader(ObjectManager om, short base, byte[] buffer, short offset){
+        Util.setShort(buffer, offset, om.getIdFromAddress(base));
+        short labelsize= Util.makeShort((byte)0, om.getObjectByte(base,SECRET_OFFSET_LABEL_SIZE));
+        om.getObjectData(base, (short)0, buffer, (short)(offset+2), (short)(SECRET_HEADER_SIZE+labelsize));
         return (short)(2+SECRET_HEADER_SIZE+labelsize);
     }
 
     /** 
      * This function returns the logs stored in the card
      * 
-     * This function must be initially called with the INIT option. 
+     * In paging mode (p1=0x00), this function must be initially called with the INIT option. 
      * The function only returns one object information at a time and must be
      * called in repetition until SW_SUCCESS is returned with no further data.
      * Log are returned starting with the most recent log first. 
      * 
+     * In bulk mode (p1=0x01), a window of logs is returned in a single response, 
+     * chained with SW 61xx if it does not fit in one APDU: the remaining parts are 
+     * retrieved with GET RESPONSE (ins 0xC0, Le=xx). Once concatenated, the parts form 
+     * a regular response (encrypted as a whole if the secure channel is used).
+     * 
+     * In incremental mode (p1=0x02), the logs that are not archived yet by the host are returned 
+     * as in bulk mode. Logs are numbered in order from 0: the host passes the sequence number 
+     * following the last log it archived, and the card reports how many newer logs were 
+     * overwritten in the ring before they could be read (nb_lost).
+     * 
+     * In signed incremental mode (p1=0x03), the response of the incremental mode is followed by 
+     * the hash chain over all the logs and its signature by the authentikey. The chain is 
+     * chain_n = SHA256(chain_(n-1) | n(4b) | log_n(7b)) with chain_(-1) = 0 (32 bytes), so a host holding the 
+     * chain of its last archived log can check the logs received with a single signature.
+     * 
+     * In cursor mode (p1=0x04), the logs are paged from the most recent as in paging mode, but the 
+     * host passes a cursor with each command: logs with a lower sequence number are returned, and 
+     * the response holds the cursor for the next page. Paging needs no state on card: it resumes 
+     * from any point, and several hosts may page independently. The filter is given with each page.
+     * 
      * ins: 0xA9
-     * p1: 0x00 
-     * p2: OP_INIT (reset and get first entry) or OP_PROCESS (next entry)
-     * data: (none)
+     * p1: 0x00 (paging), 0x01 (bulk), 0x02 (incremental), 0x03 (signed incremental) or 0x04 (cursor)
+     * p2: OP_INIT (reset and get first entry) or OP_PROCESS (next entry), ignored in other modes
+     * data: (none) or, in paging mode with OP_INIT, optional filter [flags(1b) | ins(1b) | id1(2b) | id2(2b)]
+     *      where flags combines 0x01 (match ins), 0x02 (match id1), 0x04 (match id2), 
+     *      0x08 (successful operations only) and 0x10 (failed operations only), 
+     *      or, in cursor mode, [cursor(4b) | optional filter(6b)] with cursor 0xFFFFFFFF for the most recent logs, 
+     *      or, in bulk mode, optional [start(2b) | count(2b)]: skip the 'start' most recent logs
+     *      and return at most 'count' logs (0 for all),
+     *      or, in (signed) incremental mode, [next_seq(4b)]: first sequence number to return
      * return: 
-     *      OP_INIT: [nbtotal_logs(2b) | nbavail_logs(2b)]
-     *      OP_PROCESS: [logs(7b)]
+     *      OP_INIT: [nbtotal_logs(2b) | nbavail_logs(2b) | first matching log(7b)]
+     *      OP_PROCESS: [matching logs(7b)]
+     *      bulk & incremental: [nbtotal_logs(2b) | nbavail_logs(2b) | nb_logs(2b) | sequence(4b) | nb_lost(4b) | logs(7b*nb_logs)]
+     *          where sequence is the sequence number of the next log to be written, so that the i-th log 
+     *          returned has sequence number (sequence - 1 - start - i)
+     *      signed incremental: [incremental response | chain(32b) | sig_size(2b) | sig]
+     *          where sig is the signature of [nb_logs(2b) | sequence(4b) | nb_lost(4b) | start(2b) | chain(32b)],
+     *          so that the window of logs returned is signed along with the chain (start is 0 in this mode)
+     *      cursor: [more(1b) | cursor(4b) | nb_logs(1b) | matching logs(7b*nb_logs)]
+     *          where cursor is the sequence number of the last log inspected (a last page may be empty)
      */
     private short printLogs(APDU apdu, byte[] buffer){
         // check that PIN[0] has been entered previously
@@ -1770,20 +2300,96 @@ public class SeedKeeper extends javacard.framework.Applet {
             ISOException.throwIt(SW_UNAUTHORIZED);
         
         short buffer_offset=(short)0;
-        if (buffer[ISO7816.OFFSET_P2] == OP_INIT){
-            boolean is_log= logger.getFirstRecord(buffer, buffer_offset);
-            if (is_log)
-                return (short)(4+Logger.LOG_SIZE);
+        short bytes_left= io_state[IO_DATA_SIZE];
+        byte p1= buffer[ISO7816.OFFSET_P1];
+        if (p1 == (byte)0x01 || p1 == (byte)0x02 || p1 == (byte)0x03){
+            short start= (short)0;
+            short count= (short)0;
+            chain_state[CHAIN_LOST]= (short)0;
+            chain_state[(short)(CHAIN_LOST+1)]= (short)0;
+            chain_state[CHAIN_TRAILER]= (short)0;
+            if (p1 != (byte)0x01){
+                if (bytes_left < Logger.SEQUENCE_SIZE)
+                    ISOException.throwIt(SW_INVALID_PARAMETER);
+                count= logger.getNbLogsSince(buffer, ISO7816.OFFSET_CDATA, tmpBuffer2, (short)0);
+                chain_state[CHAIN_LOST]= Util.getShort(tmpBuffer2, (short)0);
+                chain_state[(short)(CHAIN_LOST+1)]= Util.getShort(tmpBuffer2, (short)2);
+                if (count==0)
+                    count= (short)-1; // no log
+            }
+            else if (bytes_left >= 4){
+                start= Util.getShort(buffer, ISO7816.OFFSET_CDATA);
+                count= Util.getShort(buffer, (short)(ISO7816.OFFSET_CDATA+2));
+            }
+            short nbavail= logger.getNbAvailLogs();
+            if ((start<0) || (start>nbavail))
+                start= nbavail;
+            if (count<0)
+                count= (short)0;
+            else if ((count==0) || (count>(short)(nbavail-start)))
+                count= (short)(nbavail-start);
+            
+            if (p1 == (byte)0x03){
+                // trailer: [chain(32b) | sig_size(2b) | sig] 
+                // with sig over [nb_logs(2b) | sequence(4b) | nb_lost(4b) | start(2b) | chain(32b)]
+                Util.setShort(recvBuffer, (short)0, count);
+                logger.getSequence(recvBuffer, (short)2);
+                Util.setShort(recvBuffer, (short)6, chain_state[CHAIN_LOST]);
+                Util.setShort(recvBuffer, (short)8, chain_state[(short)(CHAIN_LOST+1)]);
+                Util.setShort(recvBuffer, (short)10, start);
+                logger.getChain(recvBuffer, LOGS_SIGNED_WINDOW_SIZE);
+                sigECDSA.init(authentikey_private, Signature.MODE_SIGN);
+                short sign_size= sigECDSA.sign(recvBuffer, (short)0, (short)(LOGS_SIGNED_WINDOW_SIZE+Logger.CHAIN_SIZE), 
+                        recvBuffer, (short)(LOGS_SIGNED_WINDOW_SIZE+Logger.CHAIN_SIZE+2));
+                Util.setShort(recvBuffer, (short)(LOGS_SIGNED_WINDOW_SIZE+Logger.CHAIN_SIZE), sign_size);
+                Util.arrayCopyNonAtomic(recvBuffer, LOGS_SIGNED_WINDOW_SIZE, recvBuffer, (short)0, (short)(Logger.CHAIN_SIZE+2+sign_size));
+                chain_state[CHAIN_TRAILER]= (short)(Logger.CHAIN_SIZE+2+sign_size);
+            }
+            
+            // the ring holds at most Logger.MAX_NBRECORDS logs, so the size and padded size fit in a short
+            short size= (short)(LOGS_HEADER_SIZE+count*Logger.LOG_SIZE+chain_state[CHAIN_TRAILER]);
+            chain_state[CHAIN_INS]= INS_PRINT_LOGS;
+            chain_state[CHAIN_POS]= (short)0;
+            chain_state[CHAIN_SIZE]= size;
+            if (!needs_secure_channel)
+                chain_state[CHAIN_PADDED_SIZE]= size;
+            else if (sc_mac_mode[0]==SC_AEAD_AES_CTR_CMAC)
+                chain_state[CHAIN_PADDED_SIZE]= (short)(size+AES_BLOCKSIZE); // followed by the mac
             else
-                return (short)4;        
+                chain_state[CHAIN_PADDED_SIZE]= (short)(size+AES_BLOCKSIZE-(size%AES_BLOCKSIZE));
+            chain_state[CHAIN_START]= start;
+            chain_state[CHAIN_COUNT]= count;
+            chain_state[CHAIN_RECORD]= (short)0;
+            chain_state[CHAIN_CURSOR]= logger.getRecordOffset(start);
+            sendLogsChunk(apdu, buffer);
+            return (short)0;
+        }
+        else if (p1 == (byte)0x04){
+            if (bytes_left < Logger.SEQUENCE_SIZE)
+                ISOException.throwIt(SW_INVALID_PARAMETER);
+            // tmpBuffer2= [cursor(4b) | filter(6b)], as the response overwrites the command
+            Util.arrayCopyNonAtomic(buffer, ISO7816.OFFSET_CDATA, tmpBuffer2, (short)0, Logger.SEQUENCE_SIZE);
+            setLogFilter(buffer, (short)(ISO7816.OFFSET_CDATA+Logger.SEQUENCE_SIZE), (short)(bytes_left-Logger.SEQUENCE_SIZE), 
+                    tmpBuffer2, Logger.SEQUENCE_SIZE);
+            short max_logs= (short)((short)(io_state[IO_MAX_RESPONSE]-6)/Logger.LOG_SIZE);
+            short nb_logs= logger.getRecordsBefore(tmpBuffer2, (short)0, tmpBuffer2, Logger.SEQUENCE_SIZE, buffer, (short)6, max_logs);
+            buffer[0]= (nb_logs==max_logs) ? (byte)1 : (byte)0;
+            Util.arrayCopyNonAtomic(tmpBuffer2, (short)0, buffer, (short)1, Logger.SEQUENCE_SIZE);
+            buffer[5]= (byte)nb_logs;
+            return (short)(6+nb_logs*Logger.LOG_SIZE);
+        }
+        else if (buffer[ISO7816.OFFSET_P2] == OP_INIT){
+            // filter & cursor are kept for the following OP_PROCESS
+            setLogFilter(buffer, ISO7816.OFFSET_CDATA, bytes_left, cursors, CURSOR_LOG_FILTER);
+            Util.arrayFillNonAtomic(cursors, CURSOR_LOGS, Logger.SEQUENCE_SIZE, (byte)0xFF);
+            Util.setShort(buffer, (short)0, logger.getNbTotalLogs());
+            Util.setShort(buffer, (short)2, logger.getNbAvailLogs());
+            short nb_logs= logger.getRecordsBefore(cursors, CURSOR_LOGS, cursors, CURSOR_LOG_FILTER, buffer, (short)4, (short)1);
+            return (short)(4+nb_logs*Logger.LOG_SIZE);
         }
         else if (buffer[ISO7816.OFFSET_P2] == OP_PROCESS){
-            while(logger.getNextRecord(buffer, buffer_offset)){
-                buffer_offset+=Logger.LOG_SIZE;
-                if (buffer_offset>=128)
-                    break;
-            }
-            return buffer_offset;
+            short nb_logs= logger.getRecordsBefore(cursors, CURSOR_LOGS, cursors, CURSOR_LOG_FILTER, buffer, (short)0, LOGS_PAGE_SIZE);
+            return (short)(nb_logs*Logger.LOG_SIZE);
         }
         else{
             ISOException.throwIt(SW_INCORRECT_P2);
@@ -1791,38 +2397,686 @@ public class SeedKeeper extends javacard.framework.Applet {
         return buffer_offset;
     }
     
+    /** Copies an optional log filter [flags(1b) | ins(1b) | id1(2b) | id2(2b)] to dst, or clears it */
+    private void setLogFilter(byte[] buffer, short offset, short size, byte[] dst, short dst_offset){
+        if (size >= Logger.FILTER_SIZE){
+            Util.arrayCopyNonAtomic(buffer, offset, dst, dst_offset, Logger.FILTER_SIZE);
+        }else{
+            Util.arrayFillNonAtomic(dst, dst_offset, Logger.FILTER_SIZE, (byte)0);
+        }
+    }
+    
     /** 
-     * This function reset a secret object in memory.
-     * TODO: evaluate security implications!
-     * 
-     * ins: 0xA5
-     * p1: 0
-     * p2: 0
-     * data: [ id(2b) ]
-     * return: (none)    
+     * Sends the next part of a bulk log dump, and SW 61xx if more parts remain.
+     * The response stream is [IV(16b) | size(2b) | encrypted logs] with the secure channel 
+     * (encrypted incrementally, part by part), or the plain logs otherwise.
      */
-    private short resetSecret(APDU apdu, byte[] buffer){
-        // check that PIN[0] has been entered previously
-        if (!pins[0].isValidated())
-            ISOException.throwIt(SW_UNAUTHORIZED);
+    private void sendLogsChunk(APDU apdu, byte[] buffer){
+        short pos= chain_state[CHAIN_POS];
+        short padded_size= chain_state[CHAIN_PADDED_SIZE];
+        short buffer_offset= (short)0;
+        short chunk_size= CHAIN_CHUNK_SIZE;
+        boolean ctr_mode= needs_secure_channel && (sc_mac_mode[0]==SC_AEAD_AES_CTR_CMAC);
+        if (needs_secure_channel && pos==0){
+            Util.arrayCopyNonAtomic(sc_buffer, OFFSET_SC_IV, buffer, (short)0, SIZE_SC_IV);
+            if (ctr_mode){
+                Util.setShort(buffer, SIZE_SC_IV, chain_state[CHAIN_SIZE]);
+                sc_cmac.update(buffer, (short)0, SC_RESPONSE_OFFSET);
+            }else{
+                Util.setShort(buffer, SIZE_SC_IV, padded_size);
+                sc_aes128_cbc.init(sc_sessionkey, Cipher.MODE_ENCRYPT, sc_buffer, OFFSET_SC_IV, SIZE_SC_IV);
+            }
+            buffer_offset= SC_RESPONSE_OFFSET;
+            chunk_size-= AES_BLOCKSIZE;
+        }
+        if (chunk_size>(short)(padded_size-pos))
+            chunk_size= (short)(padded_size-pos);
         
-        // currently not supported
-        ISOException.throwIt(SW_UNSUPPORTED_FEATURE);
+        // fill chunk with the [header | logs | trailer | padding] stream
+        short size= chain_state[CHAIN_SIZE];
+        short offset= buffer_offset;
+        short end= (short)(pos+chunk_size);
+        while (pos<end){
+            short n;
+            short trailer_offset= (short)(size-chain_state[CHAIN_TRAILER]);
+            if (pos>=size){
+                n= (short)(end-pos);
+                Util.arrayFillNonAtomic(buffer, offset, n, (byte)(padded_size-size));
+            }else if (pos>=trailer_offset){
+                n= (short)(size-pos);
+                if (n>(short)(end-pos)) n= (short)(end-pos);
+                Util.arrayCopyNonAtomic(recvBuffer, (short)(pos-trailer_offset), buffer, offset, n);
+            }else if (pos<LOGS_HEADER_SIZE){
+                Util.setShort(tmpBuffer2, (short)0, logger.getNbTotalLogs());
+                Util.setShort(tmpBuffer2, (short)2, logger.getNbAvailLogs());
+                Util.setShort(tmpBuffer2, (short)4, chain_state[CHAIN_COUNT]);
+                logger.getSequence(tmpBuffer2, (short)6);
+                Util.setShort(tmpBuffer2, (short)10, chain_state[CHAIN_LOST]);
+                Util.setShort(tmpBuffer2, (short)12, chain_state[(short)(CHAIN_LOST+1)]);
+                n= (short)(LOGS_HEADER_SIZE-pos);
+                if (n>(short)(end-pos)) n= (short)(end-pos);
+                Util.arrayCopyNonAtomic(tmpBuffer2, pos, buffer, offset, n);
+            }else{
+                short index= (short)((short)(pos-LOGS_HEADER_SIZE)/Logger.LOG_SIZE);
+                short rec_offset= (short)((short)(pos-LOGS_HEADER_SIZE)%Logger.LOG_SIZE);
+                // logs are sent in sequence: move the cursor to the next log when needed
+                if (index != chain_state[CHAIN_RECORD]){
+                    chain_state[CHAIN_RECORD]= index;
+                    chain_state[CHAIN_CURSOR]= chain_state[CHAIN_NEXT];
+                }
+                chain_state[CHAIN_NEXT]= logger.getRecordAt(chain_state[CHAIN_CURSOR], tmpBuffer2, (short)0);
+                n= (short)(Logger.LOG_SIZE-rec_offset);
+                if (n>(short)(end-pos)) n= (short)(end-pos);
+                Util.arrayCopyNonAtomic(tmpBuffer2, rec_offset, buffer, offset, n);
+            }
+            pos+= n;
+            offset+= n;
+        }
         
-        return (short)0;
-    }// end resetSecret
-    
-    /** 
-     * This function creates a PIN with parameters specified by the P1, P2 and DATA
-     * values. P2 specifies the maximum number of consecutive unsuccessful
-     * verifications before the PIN blocks. PIN can be created only if one of the logged identities
-     * allows it. 
-     * 
+        if (ctr_mode){
+            // [data | mac]: the data is encrypted, then the mac is computed once the data is over, 
+            // and kept in recvBuffer after the trailer as it may be sent in two chunks
+            short start= (short)(end-chunk_size);
+            short n= (end>size) ? (short)(size-start) : chunk_size;
+            if (n>0){
+                cryptSecureChannelCtr(sc_buffer, OFFSET_SC_IV, (short)(start/AES_BLOCKSIZE), buffer, buffer_offset, n);
+                sc_cmac.update(buffer, buffer_offset, n);
+            }
+            if (end>size){
+                short mac_offset= chain_state[CHAIN_TRAILER];
+                if (start<=size)
+                    sc_cmac.sign(buffer, buffer_offset, (short)0, recvBuffer, mac_offset);
+                if (n<0)
+                    n= (short)0;
+                Util.arrayCopyNonAtomic(recvBuffer, (short)(mac_offset+start+n-size), buffer, (short)(buffer_offset+n), (short)(chunk_size-n));
+            }
+        }
+        else if (needs_secure_channel){
+            if (pos==padded_size)
+                sc_aes128_cbc.doFinal(buffer, buffer_offset, chunk_size, buffer, buffer_offset);
+            else
+                sc_aes128_cbc.update(buffer, buffer_offset, chunk_size, buffer, buffer_offset);
+        }
+        chain_state[CHAIN_POS]= pos;
+        apdu.setOutgoingAndSend((short)0, (short)(buffer_offset+chunk_size));
+        
+        short remaining= (short)(padded_size-pos);
+        if (remaining==0){
+            chain_state[CHAIN_INS]= (short)0;
+            return;
+        }
+        if (remaining>CHAIN_CHUNK_SIZE)
+            remaining= CHAIN_CHUNK_SIZE;
+        ISOException.throwIt((short)(ISO7816.SW_BYTES_REMAINING_00 | remaining));
+    }
+    
+    /** 
+     * This function returns the usage counters maintained by the logger, which keep counting 
+     * after the oldest logs are dropped from the log ring.
+     * 
+     * For each operation counted, the number of successes (0x9000) and failures (any other 
+     * status word, or a command torn) are given, saturating at 0xFFFF. Operations logged 
+     * with a pubkey (secure import/export) are counted apart from plain ones. PIN commands are 
+     * only logged, thus counted, on failure, and secure channel initializations on success.
+     * 
+     * ins: 0xAF
+     * p1: 0x00
+     * p2: 0x00
+     * data: none
+     * return: [nb_entries(1b) | entries] 
+     *      where each entry is [ins(1b) | secure(1b) | nb_success(2b) | nb_failure(2b)]
+     */
+    private short getStatistics(APDU apdu, byte[] buffer){
+        // check that PIN[0] has been entered previously
+        if (!pins[0].isValidated())
+            ISOException.throwIt(SW_UNAUTHORIZED);
+        
+        buffer[0]= Logger.STATS_NB_ENTRIES;
+        return (short)(1+logger.getStatistics(buffer, (short)1));
+    }
+    
+    /** 
+     * This function returns a node of the Merkle tree maintained over the secrets of the vault, 
+     * signed by the authentikey.
+     * 
+     * Each secret is hashed with its header (see computeSecretHash()), and this hash is added
+     * (modulo 2^256) into the leaf given by its first 2 bytes (modulo nb_leaves, which depends on 
+     * the vault size). Internal nodes are SHA256(left_child | right_child).
+     * A card and its backup can be compared with their root (node 0), and a mismatch narrowed down
+     * by descending the tree to the leaves, which identify the secrets that differ by their hash,
+     * whatever the ids assigned by each card. Trees, root included, are only comparable if they 
+     * have the same nb_leaves, i.e. if the vaults have a similar capacity.
+     * 
+     * ins: 0xAA
+     * p1: 0x00
+     * p2: 0x00
+     * data: [node_index(2b)] (0 for the root, children of node i are 2i+1 and 2i+2)
+     * return: [nb_leaves(2b) | node_index(2b) | node_hash(32b) | left_hash(32b) | right_hash(32b) | sig_size(2b) | sig]
+     *      where children hashes are omitted for leaves
+     */
+    private short getMerkleNode(APDU apdu, byte[] buffer){
+        // check that the PIN owning the vault has been entered previously
+        getVault();
+        MerkleTree tree= om_trees[active_vault[0]];
+        
+        short bytes_left = io_state[IO_DATA_SIZE];
+        if (bytes_left<2)
+            ISOException.throwIt(SW_INVALID_PARAMETER);
+        short node= Util.getShort(buffer, ISO7816.OFFSET_CDATA);
+        if ((node<0) || (node>=tree.getNbNodes()))
+            ISOException.throwIt(SW_INVALID_PARAMETER);
+        
+        short buffer_offset= (short)0;
+        Util.setShort(buffer, buffer_offset, tree.getNbLeaves());
+        buffer_offset+=2;
+        Util.setShort(buffer, buffer_offset, node);
+        buffer_offset+=2;
+        buffer_offset+= tree.getNode(node, buffer, buffer_offset);
+        
+        // sign with authentikey
+        sigECDSA.init(authentikey_private, Signature.MODE_SIGN);
+        short sign_size= sigECDSA.sign(buffer, (short)0, buffer_offset, buffer, (short)(buffer_offset+2));
+        Util.setShort(buffer, buffer_offset, sign_size);
+        return (short)(buffer_offset+2+sign_size);
+    }
+    
+    /** 
+     * Reads the key of a pubkey object to recvBuffer[0..65] (uncompressed form), the rest of the object is cleared.
+     * Throws SW_OBJECT_NOT_FOUND or SW_INVALID_PARAMETER (the lock is not released).
+     */
+    private void loadPubkeyObject(ObjectManager om, short id_pubkey){
+        short base_pubkey= om.getBaseAddress(OM_TYPE, id_pubkey);
+        if (base_pubkey==MemoryManager.NULL_OFFSET)
+            ISOException.throwIt(SW_OBJECT_NOT_FOUND);
+        short obj_pubkey_size= om.getSizeFromAddress(base_pubkey);
+        if (obj_pubkey_size>(short)(SECRET_HEADER_SIZE+MAX_LABEL_SIZE+80))
+            ISOException.throwIt(SW_INVALID_PARAMETER);
+        om.getObjectData(base_pubkey, (short)0, recvBuffer, (short)0, obj_pubkey_size);
+        short data_offset= (short) (SECRET_HEADER_SIZE + Util.makeShort((byte)0, recvBuffer[SECRET_OFFSET_LABEL_SIZE]));
+        if ((recvBuffer[SECRET_OFFSET_TYPE]!=SECRET_TYPE_PUBKEY) || (obj_pubkey_size<(short)(data_offset+80))){
+            Util.arrayFillNonAtomic(recvBuffer, (short)0, obj_pubkey_size, (byte)0x00);
+            ISOException.throwIt(SW_INVALID_PARAMETER);
+        }
+        om_aes128_ecb.init(om_encryptkey, Cipher.MODE_DECRYPT);
+        om_aes128_ecb.doFinal(recvBuffer, data_offset, (short)80, recvBuffer, data_offset); //size should be 65+1+padding
+        if (recvBuffer[data_offset] != 65){
+            Util.arrayFillNonAtomic(recvBuffer, (short)0, obj_pubkey_size, (byte)0x00);
+            ISOException.throwIt(SW_INVALID_PARAMETER);
+        }
+        Util.arrayCopyNonAtomic(recvBuffer, (short)(data_offset+1), recvBuffer, (short)0, (short)65);
+        Util.arrayFillNonAtomic(recvBuffer, (short)65, (short)(obj_pubkey_size-65), (byte)0x00);
+    }
+    
+    /** 
+     * Derives secret_sc_sessionkey & secret_sc_buffer mackey from the ECDH between 
+     * the authentikey and a pubkey object, as done for secure export/import.
+     * The pubkey object is read in recvBuffer, which is cleared afterwards.
+     * Throws SW_OBJECT_NOT_FOUND or SW_INVALID_PARAMETER (the lock is not released).
+     */
+    private void initSecretSessionKey(ObjectManager om, short id_pubkey){
+        loadPubkeyObject(om, id_pubkey);
+        // compute shared static key 
+        keyAgreement.init(authentikey_private);        
+        keyAgreement.generateSecret(recvBuffer, (short)0, (short) 65, recvBuffer, (short)65); //pubkey in uncompressed form
+        // derive secret_sessionkey & secret_mackey
+        HmacSha160.computeHmacSha160(recvBuffer, (short)66, (short)32, SECRET_CST_SC, (short)6, (short)6, recvBuffer, (short)130);
+        Util.arrayCopyNonAtomic(recvBuffer, (short)130, secret_sc_buffer, OFFSET_SC_MACKEY, SIZE_SC_MACKEY);
+        HmacSha160.setKey(secret_sc_buffer, OFFSET_SC_MACKEY, SIZE_SC_MACKEY, secret_sc_mac_ctx, (short)0);
+        HmacSha160.computeHmacSha160(recvBuffer, (short)66, (short)32, SECRET_CST_SC, (short)0, (short)6, recvBuffer, (short)130);
+        secret_sc_sessionkey.setKey(recvBuffer,(short)130); // AES-128: 16-bytes key!!
+        Util.arrayFillNonAtomic(recvBuffer, (short)0, (short)(130+HmacSha160.HASHSIZE), (byte)0x00);
+    }
+    
+    /** 
+     * Checks that a pubkey object holds the authentikey of a SeedKeeper, which answered the challenge
+     * stored in recvBuffer at IMAGE_OFFSET_CHALLENGE with challenge_response_pki(), i.e. signed 
+     * ["Challenge:" | target_random(32b) | challenge(32b)].
+     * The card holds no CA key: the certificate of the target (see export_PKI_certificate()) is checked by the host.
+     * Throws SW_SIGNATURE_INVALID (the lock is not released).
+     */
+    private void verifyTargetAuthentikey(ObjectManager om, short id_pubkey, byte[] buffer, short offset, short bytes_left){
+        if (bytes_left<(short)(IMAGE_CHALLENGE_SIZE+2))
+            ISOException.throwIt(SW_INVALID_PARAMETER);
+        short sign_size= Util.getShort(buffer, (short)(offset+IMAGE_CHALLENGE_SIZE));
+        if ((sign_size<0) || (sign_size>(short)(bytes_left-IMAGE_CHALLENGE_SIZE-2)))
+            ISOException.throwIt(SW_INVALID_PARAMETER);
+        loadPubkeyObject(om, id_pubkey);
+        image_target_pubkey.setW(recvBuffer, (short)0, (short)65);
+        
+        // recvBuffer= [pubkey(65b) | "Challenge:" | target_random | challenge]
+        short msg_offset= (short)65;
+        short msg_size= (short)PKI_CHALLENGE_MSG.length;
+        Util.arrayCopyNonAtomic(PKI_CHALLENGE_MSG, (short)0, recvBuffer, msg_offset, msg_size);
+        Util.arrayCopyNonAtomic(buffer, offset, recvBuffer, (short)(msg_offset+msg_size), IMAGE_CHALLENGE_SIZE);
+        msg_size+= IMAGE_CHALLENGE_SIZE;
+        Util.arrayCopyNonAtomic(recvBuffer, IMAGE_OFFSET_CHALLENGE, recvBuffer, (short)(msg_offset+msg_size), IMAGE_CHALLENGE_SIZE);
+        msg_size+= IMAGE_CHALLENGE_SIZE;
+        sigECDSA.init(image_target_pubkey, Signature.MODE_VERIFY);
+        boolean is_valid= sigECDSA.verify(recvBuffer, msg_offset, msg_size, buffer, (short)(offset+IMAGE_CHALLENGE_SIZE+2), sign_size);
+        Util.arrayFillNonAtomic(recvBuffer, (short)0, (short)(msg_offset+msg_size), (byte)0x00);
+        if (!is_valid)
+            ISOException.throwIt(SW_SIGNATURE_INVALID);
+    }
+    
+    /** Returns the offset of the (encrypted) secret in an object read in recvBuffer */
+    private short getSecretDataOffset(){
+        return (short)(SECRET_HEADER_SIZE+Util.makeShort((byte)0, recvBuffer[SECRET_OFFSET_LABEL_SIZE]));
+    }
+    
+    /** 
+     * Returns true if an object read in recvBuffer can be stored in a store image: 
+     * its secret is encrypted by AES blocks after the header & label.
+     */
+    private boolean isImageRecordValid(short size){
+        if ((size<SECRET_HEADER_SIZE) || (size>(short)recvBuffer.length))
+            return false;
+        short data_size= (short)(size-getSecretDataOffset());
+        return (data_size>=0) && (data_size%AES_BLOCKSIZE==0);
+    }
+    
+    /** 
+     * Returns the size of a store image, padded to AES blocks, or throws SW_UNSUPPORTED_FEATURE if too large.
+     * Also checks that all secrets can be exported.
+     */
+    private short getImageSize(ObjectManager om){
+        short size= IMAGE_HEADER_SIZE;
+        short base= om.getFirstObject();
+        while (base!=MemoryManager.NULL_OFFSET){
+            if (om.getObjectByte(base, SECRET_OFFSET_EXPORT_CONTROL)==SECRET_EXPORT_FORBIDDEN)
+                ISOException.throwIt(SW_EXPORT_NOT_ALLOWED);
+            short obj_size= om.getSizeFromAddress(base);
+            om.getObjectData(base, (short)0, recvBuffer, (short)0, SECRET_HEADER_SIZE);
+            if (!isImageRecordValid(obj_size))
+                ISOException.throwIt(SW_INTERNAL_ERROR);
+            if (obj_size > (short)(0x7FFF-AES_BLOCKSIZE-2-size))
+                ISOException.throwIt(SW_UNSUPPORTED_FEATURE);
+            size+= (short)(2+obj_size);
+            base= om.getNextObject(base);
+        }
+        return (short)(size + AES_BLOCKSIZE - (size%AES_BLOCKSIZE));
+    }
+    
+    /** Reads the object at base in recvBuffer, with its secret decrypted, and returns its size */
+    private short loadImageRecord(ObjectManager om, short base){
+        short size= om.getSizeFromAddress(base);
+        om.getObjectData(base, (short)0, recvBuffer, (short)0, size);
+        short data_offset= getSecretDataOffset();
+        om_aes128_ecb.init(om_encryptkey, Cipher.MODE_DECRYPT);
+        om_aes128_ecb.doFinal(recvBuffer, data_offset, (short)(size-data_offset), recvBuffer, data_offset);
+        return size;
+    }
+    
+    /** 
+     * Copies the plaintext of the next store image chunk (a multiple of 16 bytes) to buffer: 
+     * header, then a record for each object, then padding.
+     * lock_id is the object of the current record, which is loaded in recvBuffer, 
+     * lock_image_record the position in the record and lock_data_size the object size.
+     */
+    private void readImageChunk(ObjectManager om, byte[] buffer, short offset, short size){
+        short end= (short)(offset+size);
+        if (lock_image_offset==0){
+            short nb_objects= (short)0;
+            for (short base= om.getFirstObject(); base!=MemoryManager.NULL_OFFSET; base= om.getNextObject(base))
+                nb_objects++;
+            Util.arrayFillNonAtomic(buffer, offset, IMAGE_HEADER_SIZE, (byte)0x00);
+            Util.setShort(buffer, (short)(offset+IMAGE_OFFSET_NB_OBJECTS), nb_objects);
+            offset+= IMAGE_HEADER_SIZE;
+            lock_id= om.getFirstObject();
+            if (lock_id!=MemoryManager.NULL_OFFSET)
+                lock_data_size= loadImageRecord(om, lock_id);
+            lock_image_record= (short)0;
+        }
+        while ((offset<end) && (lock_id!=MemoryManager.NULL_OFFSET)){
+            if (lock_image_record<2){
+                // record: [obj_size(2b) | object]
+                buffer[offset]= (lock_image_record==0) ? (byte)(lock_data_size>>8) : (byte)lock_data_size;
+                offset++;
+                lock_image_record++;
+            }else{
+                short n= (short)(2+lock_data_size-lock_image_record);
+                if (n>(short)(end-offset)) n= (short)(end-offset);
+                Util.arrayCopyNonAtomic(recvBuffer, (short)(lock_image_record-2), buffer, offset, n);
+                offset+= n;
+                lock_image_record+= n;
+            }
+            if (lock_image_record==(short)(2+lock_data_size)){
+                lock_id= om.getNextObject(lock_id);
+                if (lock_id!=MemoryManager.NULL_OFFSET)
+                    lock_data_size= loadImageRecord(om, lock_id);
+                lock_image_record= (short)0;
+            }
+        }
+        Util.arrayFillNonAtomic(buffer, offset, (short)(end-offset), (byte)0x00);
+    }
+    
+    /** 
+     * Stages the objects of the plaintext of a store image chunk (a multiple of 16 bytes).
+     * Each object is accumulated in recvBuffer, then its secret is encrypted with the store key of 
+     * this card and it is staged in the vault. Padding is ignored (it is covered by the MAC).
+     * lock_id is the number of objects left, lock_image_record the position in the current record 
+     * and lock_data_size the object size.
+     */
+    private void writeImageChunk(ObjectManager om, byte[] buffer, short offset, short size){
+        short end= (short)(offset+size);
+        if ((lock_image_offset==0) && (size>=IMAGE_HEADER_SIZE)){
+            lock_id= Util.getShort(buffer, (short)(offset+IMAGE_OFFSET_NB_OBJECTS));
+            if (lock_id<0)
+                ISOException.throwIt(SW_INVALID_PARAMETER);
+            offset+= IMAGE_HEADER_SIZE;
+            lock_image_record= (short)0;
+        }
+        while ((offset<end) && (lock_id>0)){
+            if (lock_image_record<2){
+                if (lock_image_record==0)
+                    lock_data_size= (short)((buffer[offset] & 0xff)<<8);
+                else
+                    lock_data_size|= (short)(buffer[offset] & 0xff);
+                offset++;
+                lock_image_record++;
+                if ((lock_image_record==2) && ((lock_data_size<SECRET_HEADER_SIZE) || (lock_data_size>(short)recvBuffer.length)))
+                    ISOException.throwIt(SW_INVALID_PARAMETER);
+            }else{
+                short n= (short)(2+lock_data_size-lock_image_record);
+                if (n>(short)(end-offset)) n= (short)(end-offset);
+                Util.arrayCopyNonAtomic(buffer, offset, recvBuffer, (short)(lock_image_record-2), n);
+                offset+= n;
+                lock_image_record+= n;
+            }
+            if ((lock_image_record>=2) && (lock_image_record==(short)(2+lock_data_size))){
+                if (!isImageRecordValid(lock_data_size))
+                    ISOException.throwIt(SW_INVALID_PARAMETER);
+                short data_offset= getSecretDataOffset();
+                om_aes128_ecb.init(om_encryptkey, Cipher.MODE_ENCRYPT);
+                om_aes128_ecb.doFinal(recvBuffer, data_offset, (short)(lock_data_size-data_offset), recvBuffer, data_offset);
+                om.createStagedObject(OM_TYPE, recvBuffer, (short)0, lock_data_size);
+                lock_id--;
+                lock_image_record= (short)0;
+            }
+        }
+    }
+    
+    /** 
+     * This function exports the secrets of the vault, for migration to another SeedKeeper.
+     * The image holds each object (header, label and secret), with secrets decrypted from the store key, 
+     * so that the target re-encrypts them with its own store key. It is encrypted with a key derived 
+     * from the ECDH between the authentikey and a pubkey object (the target authentikey), as for 
+     * secure export, and authenticated with hash-then-hmac over [IV | image_size | encrypted image].
+     * 
+     * The target must prove that it holds the private key of the pubkey object: the card returns a 
+     * challenge, signed by the target SeedKeeper with challenge_response_pki() (see verifyTargetAuthentikey()).
+     * The export fails if any secret is not exportable. Each secret export counter is incremented.
+     * 
+     * image: [nb_objects(2b) | RFU(14b) | records | padding] where record= [obj_size(2b) | object]
+     * 
+     * ins: 0xAB
+     * p1: 0x00
+     * p2: operation (Init-Update)
+     * data: (init): [id_pubkey(2b)]
+     *      (first update): [target_random(32b) | sig_size(2b) | sig] as returned by the target challenge_response_pki(challenge)
+     *      (next): none
+     * return: 
+     *      (init): [challenge(32b)]
+     *      (first update): [IV(16b) | image_size(2b)]
+     *      (next):[chunk_size(2b) | chunk ]
+     *      (last):[chunk_size(2b) | chunk | hmac_size(2b) | hmac(20b)]
+     */
+    private short exportStoreImage(APDU apdu, byte[] buffer){
+        // check that the PIN owning the vault has been entered previously
+        ObjectManager om= getVault();
+        
+        short bytes_left = io_state[IO_DATA_SIZE];
+        short enc_size= (short)0;
+        
+        byte op = buffer[ISO7816.OFFSET_P2];
+        switch (op) {
+            case OP_INIT:
+                if (bytes_left<2)
+                    ISOException.throwIt(SW_INVALID_PARAMETER);
+                lock_id_pubkey= Util.getShort(buffer, ISO7816.OFFSET_CDATA);
+                // check export rights of all secrets
+                getImageSize(om);
+                logger.createLog(INS_EXPORT_STORE_IMAGE, (short)-1, lock_id_pubkey, (short)0x0000);
+                
+                lock_enabled = true;
+                lock_ins= INS_EXPORT_STORE_IMAGE;
+                lock_lastop= OP_INIT;
+                lock_recv_offset= (short)recvBuffer.length; // challenge & records are cleared by resetLock()
+                randomData.generateData(recvBuffer, IMAGE_OFFSET_CHALLENGE, IMAGE_CHALLENGE_SIZE);
+                Util.arrayCopyNonAtomic(recvBuffer, IMAGE_OFFSET_CHALLENGE, buffer, (short)0, IMAGE_CHALLENGE_SIZE);
+                return IMAGE_CHALLENGE_SIZE;
+                
+            case OP_PROCESS:
+                if ( (lock_ins!= INS_EXPORT_STORE_IMAGE) ||
+                     (lock_lastop!= OP_INIT && lock_lastop != OP_PROCESS))
+                {
+                    resetLockException();
+                }
+                
+                if (lock_lastop==OP_INIT){
+                    try{
+                        verifyTargetAuthentikey(om, lock_id_pubkey, buffer, ISO7816.OFFSET_CDATA, bytes_left);
+                        initSecretSessionKey(om, lock_id_pubkey);
+                    } catch (ISOException e){
+                        logger.updateLog(INS_EXPORT_STORE_IMAGE, (short)-1, lock_id_pubkey, e.getReason());
+                        resetLock();
+                        throw e;
+                    }
+                    
+                    // update export counters
+                    short base= om.getFirstObject();
+                    while (base!=MemoryManager.NULL_OFFSET){
+                        om.setObjectByte(base, SECRET_OFFSET_EXPORT_NBSECURE, (byte)(om.getObjectByte(base, SECRET_OFFSET_EXPORT_NBSECURE)+1));
+                        base= om.getNextObject(base);
+                    }
+                    
+                    lock_lastop= OP_PROCESS;
+                    lock_image_offset= (short)0;
+                    lock_data_remaining= getImageSize(om);
+                    
+                    // buffer= [IV | image_size], covered by the hmac
+                    randomData.generateData(secret_sc_buffer, OFFSET_SC_IV, SIZE_SC_IV);
+                    secret_sc_aes128_cbc.init(secret_sc_sessionkey, Cipher.MODE_ENCRYPT, secret_sc_buffer, OFFSET_SC_IV, SIZE_SC_IV);
+                    Util.arrayCopyNonAtomic(secret_sc_buffer, OFFSET_SC_IV, buffer, (short)0, SIZE_SC_IV);
+                    Util.setShort(buffer, SIZE_SC_IV, lock_data_remaining);
+                    secret_sha256.reset();
+                    secret_sha256.update(buffer, (short)0, (short)(SIZE_SC_IV+2));
+                    return (short)(SIZE_SC_IV+2);
+                }
+                
+                short chunk_size= getChunkSize(IMAGE_CHUNK_SIZE, (short)(2+2+20)); // [size | chunk | hmac_size | hmac]
+                if (lock_data_remaining<=chunk_size)
+                    chunk_size= lock_data_remaining;
+                readImageChunk(om, buffer, (short)2, chunk_size);
+                lock_image_offset+= chunk_size;
+                lock_data_remaining-= chunk_size;
+                
+                if (lock_data_remaining>0){
+                    enc_size= secret_sc_aes128_cbc.update(buffer, (short)2, chunk_size, buffer, (short)2);
+                    secret_sha256.update(buffer, (short)2, enc_size);
+                    Util.setShort(buffer, (short)0, enc_size);
+                    // buffer= [chunk_size(2b) | chunk]
+                    return (short)(2+enc_size);
+                }
+                
+                // last chunk: hash then hmac
+                enc_size= secret_sc_aes128_cbc.doFinal(buffer, (short)2, chunk_size, buffer, (short)2);
+                Util.setShort(buffer, (short)0, enc_size);
+                short sign_size= secret_sha256.doFinal(buffer, (short)2, enc_size, buffer, (short)(2+enc_size+2));
+                sign_size= HmacSha160.computeHmacSha160(secret_sc_mac_ctx, (short)0, buffer, (short)(2+enc_size+2), sign_size, buffer, (short)(2+enc_size+2));
+                Util.setShort(buffer, (short)(2+enc_size), sign_size);
+                
+                logger.updateLog(INS_EXPORT_STORE_IMAGE, (short)-1, lock_id_pubkey, (short)0x9000);
+                resetLock();
+                lock_id_pubkey= (short)-1;
+                // buffer= [chunk_size(2b) | chunk | hmac_size(2b) | hmac]
+                return (short)(2+enc_size+2+sign_size);
+                
+            default:
+                resetLock();
+                ISOException.throwIt(SW_INCORRECT_P2);
+        }
+        return (short)0; // should never happen
+    }
+    
+    /** 
+     * This function restores the secrets of an image produced by exportStoreImage() on another SeedKeeper.
+     * The image is decrypted with a key derived from the ECDH between the authentikey and 
+     * a pubkey object (the source authentikey). Each object is re-encrypted with the store key of 
+     * this card and staged in free memory of the vault, with a new id: staged objects are only added 
+     * to the vault once the hmac over [IV | image_size | encrypted image] is verified. If the restore 
+     * is aborted or the hmac is wrong, they are erased and the vault is unchanged.
+     * 
+     * ins: 0xAC
+     * p1: 0x00
+     * p2: operation (Init-Update-Final)
+     * data: 
+     *      (init): [id_pubkey(2b) | IV(16b) | image_size(2b)]
+     *      (next): [chunk_size(2b) | chunk] (chunk_size multiple of 16)
+     *      (last): [chunk_size(2b) | chunk | hmac_size(2b) | hmac(20b)]
+     * return: none
+     */
+    private short restoreStoreImage(APDU apdu, byte[] buffer){
+        // check that the PIN owning the vault has been entered previously
+        ObjectManager om= getVault();
+        
+        short bytes_left = io_state[IO_DATA_SIZE];
+        short buffer_offset = ISO7816.OFFSET_CDATA;
+        short data_size= (short)0;
+        
+        byte op = buffer[ISO7816.OFFSET_P2];
+        switch (op) {
+            case OP_INIT:
+                if (bytes_left<(short)(2+SIZE_SC_IV+2))
+                    ISOException.throwIt(SW_INVALID_PARAMETER);
+                short image_size= Util.getShort(buffer, (short)(buffer_offset+2+SIZE_SC_IV));
+                if ( (image_size<(short)(IMAGE_HEADER_SIZE+AES_BLOCKSIZE)) || (image_size%AES_BLOCKSIZE!=0) )
+                    ISOException.throwIt(SW_INVALID_PARAMETER);
+                
+                lock_id_pubkey= Util.getShort(buffer, buffer_offset);
+                initSecretSessionKey(om, lock_id_pubkey);
+                secret_sc_aes128_cbc.init(secret_sc_sessionkey, Cipher.MODE_DECRYPT, buffer, (short)(buffer_offset+2), SIZE_SC_IV);
+                secret_sha256.reset();
+                secret_sha256.update(buffer, (short)(buffer_offset+2), (short)(SIZE_SC_IV+2));
+                logger.createLog(INS_RESTORE_STORE_IMAGE, (short)-1, lock_id_pubkey, (short)0x0000);
+                
+                lock_enabled = true;
+                lock_ins= INS_RESTORE_STORE_IMAGE;
+                lock_lastop= OP_INIT;
+                lock_recv_offset= (short)recvBuffer.length; // records are cleared by resetLock()
+                lock_image_offset= (short)0;
+                lock_data_remaining= image_size;
+                lock_id= (short)0;
+                om.beginStaging();
+                return (short)0;
+                
+            case OP_PROCESS:
+            case OP_FINALIZE:
+                if ( (lock_ins!= INS_RESTORE_STORE_IMAGE) ||
+                     (lock_lastop!= OP_INIT && lock_lastop != OP_PROCESS))
+                {
+                    resetLockException();
+                }
+                if (bytes_left<2){
+                    resetLock();
+                    ISOException.throwIt(SW_INVALID_PARAMETER);
+                }
+                data_size= Util.getShort(buffer, buffer_offset);
+                buffer_offset+=2;
+                bytes_left-=2;
+                if ( (data_size<0) || (bytes_left<data_size) || (data_size%AES_BLOCKSIZE!=0) || (data_size>lock_data_remaining) 
+                        || ((op==OP_FINALIZE) != (data_size==lock_data_remaining)) ){
+                    resetLock();
+                    ISOException.throwIt(SW_INVALID_PARAMETER);
+                }
+                
+                if (op==OP_PROCESS){
+                    secret_sha256.update(buffer, buffer_offset, data_size);
+                    secret_sc_aes128_cbc.update(buffer, buffer_offset, data_size, buffer, buffer_offset);
+                }else{
+                    // check hmac before decrypting the last chunk
+                    bytes_left-=data_size;
+                    short hmac_offset= (short)(buffer_offset+data_size+2);
+                    if ( (bytes_left<(short)(2+20)) || (Util.getShort(buffer, (short)(hmac_offset-2))!=(short)20) ){
+                        resetLock();
+                        ISOException.throwIt(SW_INVALID_PARAMETER);
+                    }
+                    secret_sha256.doFinal(buffer, buffer_offset, data_size, tmpBuffer2, (short)0);
+                    HmacSha160.computeHmacSha160(secret_sc_mac_ctx, (short)0, tmpBuffer2, (short)0, (short)32, tmpBuffer2, (short)0);
+                    if (Util.arrayCompare(buffer, hmac_offset, tmpBuffer2, (short)0, (short)20) != (byte)0){
+                        logger.updateLog(INS_RESTORE_STORE_IMAGE, (short)-1, lock_id_pubkey, SW_SECURE_IMPORT_WRONG_MAC);
+                        resetLock(); // staged objects are erased
+                        ISOException.throwIt(SW_SECURE_IMPORT_WRONG_MAC);
+                    }
+                    secret_sc_aes128_cbc.doFinal(buffer, buffer_offset, data_size, buffer, buffer_offset);
+                }
+                
+                try{
+                    writeImageChunk(om, buffer, buffer_offset, data_size);
+                    // all objects must be in the image
+                    if ((op==OP_FINALIZE) && (lock_id!=0))
+                        ISOException.throwIt(SW_INVALID_PARAMETER);
+                } catch (ISOException e){
+                    logger.updateLog(INS_RESTORE_STORE_IMAGE, (short)-1, lock_id_pubkey, e.getReason());
+                    resetLock();
+                    throw e;
+                }
+                lock_image_offset+= data_size;
+                lock_data_remaining-= data_size;
+                lock_lastop= OP_PROCESS;
+                if (op==OP_PROCESS)
+                    return (short)0;
+                
+                // add the objects to the vault
+                om_trees[active_vault[0]].setDirty();
+                om.publishStaged();
+                rebuildMerkleTree(active_vault[0]);
+                
+                logger.updateLog(INS_RESTORE_STORE_IMAGE, (short)-1, lock_id_pubkey, (short)0x9000);
+                resetLock();
+                lock_id_pubkey= (short)-1;
+                return (short)0;
+                
+            default:
+                resetLock();
+                ISOException.throwIt(SW_INCORRECT_P2);
+        }
+        return (short)0; // should never happen
+    }
+    
+    /** 
+     * This function reset a secret object in memory.
+     * TODO: evaluate security implications!
+     * 
+     * ins: 0xA5
+     * p1: 0
+     * p2: 0
+     * data: [ id(2b) ]
+     * return: (none)    
+     */
+    private short resetSecret(APDU apdu, byte[] buffer){
+        // check that the PIN owning the vault has been entered previously
+        ObjectManager om= getVault();
+        
+        // currently not supported
+        ISOException.throwIt(SW_UNSUPPORTED_FEATURE);
+        
+        return (short)0;
+    }// end resetSecret
+    
+    /** 
+     * This function creates a PIN with parameters specified by the P1, P2 and DATA
+     * values. P2 specifies the maximum number of consecutive unsuccessful
+     * verifications before the PIN blocks. PIN can be created only if one of the logged identities
+     * allows it. 
+     * 
      * ins: 0x40
      * p1: PIN number (0x00-0x07)
      * p2: max attempt number
-     * data: [PIN_size(1b) | PIN | UBLK_size(1b) | UBLK] 
+     * data: [PIN_size(1b) | PIN | UBLK_size(1b) | UBLK | vault_size(2b - optional)] 
      * return: none
+     * 
+     * If partitioned vaults are enabled, a vault of vault_size bytes is allocated for the new PIN 
+     * (or the default vault size defined during setup if vault_size is missing or 0).
      */
     private short CreatePIN(APDU apdu, byte[] buffer) {
         // check that PIN[0] has been entered previously
@@ -1835,7 +3089,7 @@ public class SeedKeeper extends javacard.framework.Applet {
         if ((pin_nb < 0) || (pin_nb >= MAX_NUM_PINS) || (pins[pin_nb] != null))
             ISOException.throwIt(SW_INCORRECT_P1);
         /* Allow pin lengths > 127 (useful at all ?) */
-        short bytesLeft = Util.makeShort((byte) 0x00, buffer[ISO7816.OFFSET_LC]);
+        short bytesLeft = io_state[IO_DATA_SIZE];
         // At least 1 character for PIN and 1 for unblock code (+ lengths)
         if (bytesLeft < 4)
             ISOException.throwIt(SW_INVALID_PARAMETER);
@@ -1845,10 +3099,15 @@ public class SeedKeeper extends javacard.framework.Applet {
         if (!CheckPINPolicy(buffer, (short) (ISO7816.OFFSET_CDATA + 1), pin_size))
             ISOException.throwIt(SW_INVALID_PARAMETER);
         byte ucode_size = buffer[(short) (ISO7816.OFFSET_CDATA + 1 + pin_size)];
-        if (bytesLeft != (short) (1 + pin_size + 1 + ucode_size))
+        short vault_size = (short) 0;
+        if (bytesLeft == (short) (1 + pin_size + 1 + ucode_size + 2))
+            vault_size = Util.getShort(buffer, (short) (ISO7816.OFFSET_CDATA + 1 + pin_size + 1 + ucode_size));
+        else if (bytesLeft != (short) (1 + pin_size + 1 + ucode_size))
             ISOException.throwIt(SW_INVALID_PARAMETER);
         if (!CheckPINPolicy(buffer, (short) (ISO7816.OFFSET_CDATA + 1 + pin_size + 1), ucode_size))
             ISOException.throwIt(SW_INVALID_PARAMETER);
+        if ((option_flags & OPTION_PARTITIONED_VAULTS) != 0)
+            createVault(pin_nb, (vault_size != 0) ? vault_size : om_vault_size);
         pins[pin_nb] = new OwnerPIN(num_tries, PIN_MAX_SIZE);
         pins[pin_nb].update(buffer, (short) (ISO7816.OFFSET_CDATA + 1), pin_size);
         ublk_pins[pin_nb] = new OwnerPIN((byte) 3, PIN_MAX_SIZE);
@@ -1880,27 +3139,39 @@ public class SeedKeeper extends javacard.framework.Applet {
             ISOException.throwIt(SW_INCORRECT_P1);
         if (buffer[ISO7816.OFFSET_P2] != 0x00)
             ISOException.throwIt(SW_INCORRECT_P2);
-        short bytesLeft = Util.makeShort((byte) 0x00, buffer[ISO7816.OFFSET_LC]);
+        short bytesLeft = io_state[IO_DATA_SIZE];
         /*
          * Here I suppose the PIN code is small enough to enter in the buffer
          * TODO: Verify the assumption and eventually adjust code to support
          * reading PIN in multiple read()s
          */
-        if (!CheckPINPolicy(buffer, ISO7816.OFFSET_CDATA, (byte) bytesLeft))
+        checkPIN(pin_nb, buffer, ISO7816.OFFSET_CDATA, bytesLeft);
+        return (short)0;
+    }
+    
+    /** 
+     * Checks the PIN of pins[pin_nb] and logs the identity in, or throws an exception 
+     * (a wrong PIN decrements the tries remaining and logs the identity out).
+     */
+    private void checkPIN(byte pin_nb, byte[] pin_buffer, short pin_offset, short pin_size) {
+        OwnerPIN pin = pins[pin_nb];
+        if ((pin_size > PIN_MAX_SIZE) || !CheckPINPolicy(pin_buffer, pin_offset, (byte) pin_size))
             ISOException.throwIt(SW_INVALID_PARAMETER);
         byte triesRemaining = pin.getTriesRemaining();
         if (triesRemaining == (byte) 0x00)
             ISOException.throwIt(SW_IDENTITY_BLOCKED);
-        if (!pin.check(buffer, (short) ISO7816.OFFSET_CDATA, (byte) bytesLeft)) {
+        if (!pin.check(pin_buffer, pin_offset, (byte) pin_size)) {
             LogoutIdentity(pin_nb);
-            logger.createLog(INS_VERIFY_PIN, (short)-1, (short)-1, (short)(SW_PIN_FAILED + triesRemaining - 1) );
+            if (logger!=null) // logger is allocated during setup
+                logger.createLog(INS_VERIFY_PIN, (short)-1, (short)-1, (short)(SW_PIN_FAILED + triesRemaining - 1) );
             ISOException.throwIt((short)(SW_PIN_FAILED + triesRemaining - 1));
         }
 
         // Actually register that PIN has been successfully verified.
         logged_ids |= (short) (0x0001 << pin_nb);
-
-        return (short)0;
+        // With partitioned vaults, secret operations then apply to the vault of this PIN
+        if ((option_flags & OPTION_PARTITIONED_VAULTS) != 0)
+            active_vault[0] = pin_nb;
     }
 
     /** 
@@ -1927,7 +3198,7 @@ public class SeedKeeper extends javacard.framework.Applet {
             ISOException.throwIt(SW_INCORRECT_P1);
         if (buffer[ISO7816.OFFSET_P2] != (byte) 0x00)
             ISOException.throwIt(SW_INCORRECT_P2);
-        short bytesLeft = Util.makeShort((byte) 0x00, buffer[ISO7816.OFFSET_LC]);
+        short bytesLeft = io_state[IO_DATA_SIZE];
         // At least 1 character for each PIN code
         if (bytesLeft < 4)
             ISOException.throwIt(SW_INVALID_PARAMETER);
@@ -1983,7 +3254,7 @@ public class SeedKeeper extends javacard.framework.Applet {
             ISOException.throwIt(SW_OPERATION_NOT_ALLOWED);
         if (buffer[ISO7816.OFFSET_P2] != 0x00)
             ISOException.throwIt(SW_INCORRECT_P2);
-        short bytesLeft = Util.makeShort((byte) 0x00, buffer[ISO7816.OFFSET_LC]);
+        short bytesLeft = io_state[IO_DATA_SIZE];
         /*
          * Here I suppose the PIN code is small enough to fit into the buffer
          * TODO: Verify the assumption and eventually adjust code to support
@@ -2006,6 +3277,7 @@ public class SeedKeeper extends javacard.framework.Applet {
 
     private short LogOutAll() {
         logged_ids = (short) 0x0000; // Nobody is logged in
+        active_vault[0] = (byte) 0x00;
         byte i;
         for (i = (byte) 0; i < MAX_NUM_PINS; i++)
             if (pins[i] != null)
@@ -2034,8 +3306,7 @@ public class SeedKeeper extends javacard.framework.Applet {
             ISOException.throwIt(SW_INCORRECT_P1);
         if (buffer[ISO7816.OFFSET_P2] != (byte) 0x00)
             ISOException.throwIt(SW_INCORRECT_P2);
-        byte expectedBytes = buffer[ISO7816.OFFSET_LC];
-        if (expectedBytes != (short) 2)
+        if (io_state[IO_DATA_SIZE] != (short) 2)
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         // Build the PIN bit mask
         short mask = (short) 0x00;
@@ -2054,18 +3325,23 @@ public class SeedKeeper extends javacard.framework.Applet {
      * card, and useful information about the status of current session such as:
      *      - applet version (4b)
      *  
+     *  With p1=0x01, a nonce is also returned for the PIN block of the next InitiateSecureChannel.
+     *  
      *  ins: 0x3C
-     *  p1: 0x00 
+     *  p1: 0x00 or 0x01 (with PIN block nonce)
      *  p2: 0x00 
      *  data: none
-     *  return: [versions(4b) | PIN0-PUK0-PIN1-PUK1 tries (4b) | needs2FA (1b) | is_seeded(1b) | setupDone(1b) | needs_secure_channel(1b)]
+     *  return: [versions(4b) | PIN0-PUK0-PIN1-PUK1 tries (4b) | needs2FA (1b) | is_seeded(1b) | setupDone(1b) | needs_secure_channel(1b) |
+     *          pin_nonce(16b) (with p1=0x01) | max_command_size(2b)]
+     *      where max_command_size is the largest data of an extended command that fits in the APDU buffer
      */
     private short GetStatus(APDU apdu, byte[] buffer) {
         // check that PIN[0] has been entered previously
         //if (!pins[0].isValidated())
         // ISOException.throwIt(SW_UNAUTHORIZED);
 
-        if (buffer[ISO7816.OFFSET_P1] != (byte) 0x00)
+        byte p1= buffer[ISO7816.OFFSET_P1];
+        if (p1 != (byte) 0x00 && p1 != (byte) 0x01)
             ISOException.throwIt(SW_INCORRECT_P1);
         if (buffer[ISO7816.OFFSET_P2] != (byte) 0x00)
             ISOException.throwIt(SW_INCORRECT_P2);
@@ -2103,6 +3379,13 @@ public class SeedKeeper extends javacard.framework.Applet {
             buffer[pos++] = (byte)0x01;
         else
             buffer[pos++] = (byte)0x00;
+        if (p1 == (byte) 0x01){
+            randomData.generateData(sc_pin_nonce, (short)1, SIZE_SC_NONCE);
+            sc_pin_nonce[0]= (byte)0x01;
+            Util.arrayCopyNonAtomic(sc_pin_nonce, (short)1, buffer, pos, SIZE_SC_NONCE);
+            pos+= SIZE_SC_NONCE;
+        }
+        pos= Util.setShort(buffer, pos, (short)(buffer.length-ISO7816.OFFSET_EXT_CDATA));
 
         return pos;
     }
@@ -2124,7 +3407,7 @@ public class SeedKeeper extends javacard.framework.Applet {
         byte op = buffer[ISO7816.OFFSET_P2];
         switch (op) {
             case 0x00: // set label
-                short bytes_left = Util.makeShort((byte) 0x00, buffer[ISO7816.OFFSET_LC]);
+                short bytes_left = io_state[IO_DATA_SIZE];
                 short buffer_offset = ISO7816.OFFSET_CDATA;
                 if (bytes_left>0){
                     short label_size= Util.makeShort((byte) 0x00, buffer[buffer_offset]);
@@ -2209,55 +3492,150 @@ public class SeedKeeper extends javacard.framework.Applet {
     
     /**
      * This function allows to initiate a Secure Channel
+     * 
+     * With p1=0x01, the card also issues a resumption ticket (see ResumeSecureChannel()), whose secret is 
+     * ticket_secret = HmacSha160(shared_secret, "sc_res") where shared_secret is the x-coordinate of the ECDH point.
+     * 
+     * The MAC of the commands is requested with p2 (see initSecureChannelMac()). The card falls back to 
+     * HMAC-SHA1 if the MAC requested is not supported, and returns the MAC mode used if p2 is not 0x00.
+     * 
+     * The ephemeral key and its signatures are taken from a pool precomputed after GetStatus (see 
+     * refillEphemeralKeyPool()) if available, so that only the ECDH is computed. Each key is used once.
+     * 
+     * Any previous session is closed: the secure channel is reset and all PINs are logged out.
+     * 
+     * A client that knows the authentikey may also send PIN[0], so that the session is opened already 
+     * logged in, without a VerifyPIN command. The client first gets a nonce with GetStatus (p1=0x01), 
+     * which is consumed by the next InitiateSecureChannel, so that a PIN block cannot be replayed. 
+     * The PIN block is encrypted with AES-128-CBC (zero IV) and authenticated with
+     *      pin_key = HmacSha160(shared_secret, pin_nonce | "sc_pin")[0:16]
+     *      pin_mackey = HmacSha160(shared_secret, pin_nonce | "sc_pmc")
+     *      mac = HmacSha160(pin_mackey, client-pubkey | encrypted PIN block)
+     * where shared_secret is the x-coordinate of the ECDH point of the client pubkey and the authentikey.
+     * The PIN is checked as with VerifyPIN before the session keys are set: a wrong PIN fails the command 
+     * and decrements the tries remaining. A wrong mac fails the command without checking the PIN.
      *  
      *  ins: 0x81
-     *  p1: 0x00
-     *  p2: 0x00
-     *  data: [client-pubkey(65b)]
-     *  return: [coordx_size(2b) | authentikey-coordx | sig_size(2b) | self-sig | sig2_size(optional) | authentikey-sig(optional)]
+     *  p1: 0x00 or 0x01 (with resumption ticket)
+     *  p2: MAC mode: 0x00 (HMAC-SHA1), 0x01 (HMAC-SHA256), 0x02 (AES-CMAC) or 0x03 (AES-CTR & AES-CMAC)
+     *  data: [client-pubkey(65b) | optional: encrypted PIN block(32b): [pin_size(1b) | pin | padding] | mac(20b)]
+     *  return: [coordx_size(2b) | authentikey-coordx | sig_size(2b) | self-sig | sig2_size(optional) | authentikey-sig(optional) |
+     *          ticket_id_size(2b) | ticket_id (with p1=0x01) | mac_mode(1b) (if p2 is not 0x00)]
      */
     private short InitiateSecureChannel(APDU apdu, byte[] buffer){
+        byte p1= buffer[ISO7816.OFFSET_P1];
+        byte p2= buffer[ISO7816.OFFSET_P2];
 
         // get client pubkey
-        short bytesLeft = Util.makeShort((byte) 0x00, buffer[ISO7816.OFFSET_LC]);
+        short bytesLeft = io_state[IO_DATA_SIZE];
         if (bytesLeft < (short)65)
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         if (buffer[ISO7816.OFFSET_CDATA] != (byte)0x04)
             ISOException.throwIt(SW_INVALID_PARAMETER);
+        
+        // a new session starts logged out, and consumes the PIN block nonce
+        initialized_secure_channel= false;
+        LogOutAll();
+        boolean has_pin_nonce= (sc_pin_nonce[0]!=0);
+        sc_pin_nonce[0]= 0;
+        
+        // verify PIN[0] from the encrypted PIN block, with keys derived from the ECDH with the authentikey and the nonce
+        if (bytesLeft >= (short)(65+SIZE_SC_PIN_BLOCK+HmacSha160.HASHSIZE)){
+            if (!setupDone)
+                ISOException.throwIt(SW_SETUP_NOT_DONE);
+            if (!has_pin_nonce)
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            // recvBuffer= [ECDH point(65b) | pin_nonce(16b) | label(6b) | derived key(20b) | mac(20b)]
+            short label_offset= (short)(65+SIZE_SC_NONCE);
+            short key_offset= (short)(label_offset+6);
+            short mac_offset= (short)(key_offset+HmacSha160.HASHSIZE);
+            short clear_size= (short)(mac_offset+HmacSha160.HASHSIZE);
+            keyAgreement.init(authentikey_private);
+            keyAgreement.generateSecret(buffer, ISO7816.OFFSET_CDATA, (short) 65, recvBuffer, (short)0);
+            Util.arrayCopyNonAtomic(sc_pin_nonce, (short)1, recvBuffer, (short)65, SIZE_SC_NONCE);
+            Util.arrayCopyNonAtomic(CST_SC_PIN, (short)6, recvBuffer, label_offset, (short)6);
+            HmacSha160.computeHmacSha160(recvBuffer, (short)1, (short)32, recvBuffer, (short)65, (short)(SIZE_SC_NONCE+6), recvBuffer, key_offset);
+            HmacSha160.computeHmacSha160(recvBuffer, key_offset, HmacSha160.HASHSIZE, buffer, ISO7816.OFFSET_CDATA, (short)(65+SIZE_SC_PIN_BLOCK), recvBuffer, mac_offset);
+            if (Util.arrayCompare(recvBuffer, mac_offset, buffer, (short)(ISO7816.OFFSET_CDATA+65+SIZE_SC_PIN_BLOCK), HmacSha160.HASHSIZE) != (byte)0){
+                Util.arrayFillNonAtomic(recvBuffer, (short)0, clear_size, (byte)0);
+                ISOException.throwIt(SW_SECURE_CHANNEL_WRONG_MAC);
+            }
+            Util.arrayCopyNonAtomic(CST_SC_PIN, (short)0, recvBuffer, label_offset, (short)6);
+            HmacSha160.computeHmacSha160(recvBuffer, (short)1, (short)32, recvBuffer, (short)65, (short)(SIZE_SC_NONCE+6), recvBuffer, key_offset);
+            sc_sessionkey.setKey(recvBuffer, key_offset); // sc_sessionkey is used for the PIN block
+            sc_aes128_cbc.init(sc_sessionkey, Cipher.MODE_DECRYPT);
+            sc_aes128_cbc.doFinal(buffer, (short)(ISO7816.OFFSET_CDATA+65), SIZE_SC_PIN_BLOCK, recvBuffer, (short)0);
+            short pin_size= Util.makeShort((byte)0x00, recvBuffer[0]);
+            if (pin_size >= SIZE_SC_PIN_BLOCK)
+                pin_size= (short)0; // rejected by the PIN policy
+            try{
+                checkPIN((byte)0, recvBuffer, (short)1, pin_size);
+            } catch (ISOException e){
+                Util.arrayFillNonAtomic(recvBuffer, (short)0, clear_size, (byte)0);
+                throw e;
+            }
+            Util.arrayFillNonAtomic(recvBuffer, (short)0, clear_size, (byte)0);
+        }
 
-        // generate a new ephemeral key
-        sc_ephemeralkey.clearKey(); //todo: simply generate new random S param instead?
-        Secp256k1.setCommonCurveParameters(sc_ephemeralkey);// keep public params!
-        randomData.generateData(recvBuffer, (short)0, BIP32_KEY_SIZE);
-        sc_ephemeralkey.setS(recvBuffer, (short)0, BIP32_KEY_SIZE); //random value first
+        // take a precomputed ephemeral key, that is never used again even if the handshake fails, or generate a new one
+        short pool_index= getEphemeralKeyFromPool();
+        ECPrivateKey ephemeralkey= sc_ephemeralkey;
+        if (pool_index>=0){
+            sc_pool_state[pool_index]= SC_POOL_EMPTY;
+            ephemeralkey= sc_pool_keys[pool_index];
+        }else{
+            randomData.generateData(recvBuffer, (short)0, BIP32_KEY_SIZE);
+            sc_ephemeralkey.setS(recvBuffer, (short)0, BIP32_KEY_SIZE);
+        }
 
         // compute the shared secret...
-        keyAgreement.init(sc_ephemeralkey);        
+        keyAgreement.init(ephemeralkey);        
         keyAgreement.generateSecret(buffer, ISO7816.OFFSET_CDATA, (short) 65, recvBuffer, (short)0); //pubkey in uncompressed form
         // derive sc_sessionkey & sc_mackey
         HmacSha160.computeHmacSha160(recvBuffer, (short)1, (short)32, CST_SC, (short)6, (short)6, recvBuffer, (short)33);
         Util.arrayCopyNonAtomic(recvBuffer, (short)33, sc_buffer, OFFSET_SC_MACKEY, SIZE_SC_MACKEY);
         HmacSha160.computeHmacSha160(recvBuffer, (short)1, (short)32, CST_SC, (short)0, (short)6, recvBuffer, (short)33);
         sc_sessionkey.setKey(recvBuffer,(short)33); // AES-128: 16-bytes key!!       
+        
+        // resumption ticket: [ticket_id | ticket_secret | uses] is staged in recvBuffer then replaces 
+        // the previous one atomically, and a new session without ticket revokes the previous one
+        if (p1==(byte)0x01){
+            randomData.generateData(recvBuffer, (short)33, SIZE_SC_TICKET_ID);
+            HmacSha160.computeHmacSha160(recvBuffer, (short)1, (short)32, CST_SC_RESUME, (short)0, (short)6, recvBuffer, (short)(33+SIZE_SC_TICKET_ID));
+            recvBuffer[(short)(33+OFFSET_SC_TICKET_USES)]= MAX_SC_RESUMPTIONS;
+            Util.arrayCopy(recvBuffer, (short)33, sc_ticket, (short)0, (short)(SIZE_SC_TICKET+1));
+            Util.arrayFillNonAtomic(recvBuffer, (short)33, (short)(SIZE_SC_TICKET+1), (byte)0);
+        }else{
+            sc_ticket[OFFSET_SC_TICKET_USES]= 0;
+        }
+        initSecureChannelMac(p2);
 
         //reset IV counter
         Util.arrayFillNonAtomic(sc_buffer, OFFSET_SC_IV, SIZE_SC_IV, (byte) 0);
 
-        // self signed ephemeral pubkey
-        keyAgreement.generateSecret(Secp256k1.SECP256K1, Secp256k1.OFFSET_SECP256K1_G, (short) 65, buffer, (short)1); //pubkey in uncompressed form
-        Util.setShort(buffer, (short)0, BIP32_KEY_SIZE);
-        sigECDSA.init(sc_ephemeralkey, Signature.MODE_SIGN);
-        short sign_size= sigECDSA.sign(buffer, (short)0, (short)(BIP32_KEY_SIZE+2), buffer, (short)(BIP32_KEY_SIZE+4));
-        Util.setShort(buffer, (short)(BIP32_KEY_SIZE+2), sign_size);
-
-        // hash signed by authentikey
-        short offset= (short)(2+BIP32_KEY_SIZE+2+sign_size);
-        sigECDSA.init(authentikey_private, Signature.MODE_SIGN);
-        short sign2_size= sigECDSA.sign(buffer, (short)0, offset, buffer, (short)(offset+2));
-        Util.setShort(buffer, offset, sign2_size);
-        offset+=(short)(2+sign2_size); 
+        // self signed ephemeral pubkey, signed by authentikey
+        short offset;
+        if (pool_index>=0){
+            short pool_base= (short)(pool_index*SC_POOL_ENTRY_SIZE);
+            offset= Util.getShort(sc_key_pool, (short)(pool_base+SC_POOL_OFFSET_SIZE));
+            Util.arrayCopyNonAtomic(sc_key_pool, (short)(pool_base+SC_POOL_OFFSET_RESPONSE), buffer, (short)0, offset);
+        }else{
+            offset= signEphemeralKey(sc_ephemeralkey, buffer, (short)0);
+        }
 
         initialized_secure_channel= true;
+        if (logger!=null)
+            logger.countOperation(INS_INIT_SECURE_CHANNEL, (short)-1, (short)0x9000);
+        
+        if (p1==(byte)0x01){
+            Util.setShort(buffer, offset, SIZE_SC_TICKET_ID);
+            Util.arrayCopyNonAtomic(sc_ticket, (short)0, buffer, (short)(offset+2), SIZE_SC_TICKET_ID);
+            offset+=(short)(2+SIZE_SC_TICKET_ID);
+        }
+        if (p2!=SC_MAC_HMAC_SHA1){
+            buffer[offset]= sc_mac_mode[0];
+            offset++;
+        }
 
         // return x-coordinate of public key+signature
         // the client can recover full public-key from the signature or
@@ -2265,6 +3643,284 @@ public class SeedKeeper extends javacard.framework.Applet {
         // buffer= [coordx_size(2) | coordx | sigsize(2) | sig | sig2_size(optional) | sig2(optional)]
         return offset;
     }
+    
+    /** 
+     * Writes the pubkey of an ephemeral key, signed by itself then by authentikey, and returns its size:
+     * [coordx_size(2b) | coordx | sig_size(2b) | self-sig | sig2_size(2b) | authentikey-sig]
+     */
+    private short signEphemeralKey(ECPrivateKey ephemeralkey, byte[] buffer, short offset){
+        // self signed ephemeral pubkey
+        keyAgreement.init(ephemeralkey);        
+        keyAgreement.generateSecret(Secp256k1.SECP256K1, Secp256k1.OFFSET_SECP256K1_G, (short) 65, buffer, (short)(offset+1)); //pubkey in uncompressed form
+        Util.setShort(buffer, offset, BIP32_KEY_SIZE);
+        sigECDSA.init(ephemeralkey, Signature.MODE_SIGN);
+        short sign_size= sigECDSA.sign(buffer, offset, (short)(BIP32_KEY_SIZE+2), buffer, (short)(offset+BIP32_KEY_SIZE+4));
+        Util.setShort(buffer, (short)(offset+BIP32_KEY_SIZE+2), sign_size);
+
+        // hash signed by authentikey
+        short size= (short)(2+BIP32_KEY_SIZE+2+sign_size);
+        sigECDSA.init(authentikey_private, Signature.MODE_SIGN);
+        short sign2_size= sigECDSA.sign(buffer, offset, size, buffer, (short)(offset+size+2));
+        Util.setShort(buffer, (short)(offset+size), sign2_size);
+        return (short)(size+2+sign2_size); 
+    }
+    
+    /** Returns the index of a precomputed ephemeral key in the pool, or -1 if the pool is empty */
+    private short getEphemeralKeyFromPool(){
+        for (short i=(short)0; i<SC_POOL_SIZE; i++){
+            if (sc_pool_state[i]==SC_POOL_READY)
+                return i;
+        }
+        return (short)-1;
+    }
+    
+    /** 
+     * Precomputes one ephemeral key of the pool, if an entry is empty, so that the next handshakes 
+     * only compute the ECDH. Called by GetStatus, which clients send before InitiateSecureChannel, 
+     * once its response is sent, so never on the path of a handshake. The private key of a used 
+     * entry is overwritten when the entry is refilled.
+     * The response prefix is written in recvBuffer, then the entry is marked as ready once copied.
+     */
+    private void refillEphemeralKeyPool(){
+        short index= getEmptyPoolEntry();
+        if (index<0)
+            return;
+        // the curve parameters of a transient key are cleared at card reset
+        ECPrivateKey ephemeralkey= sc_pool_keys[index];
+        if (!ephemeralkey.isInitialized())
+            Secp256k1.setCommonCurveParameters(ephemeralkey);
+        randomData.generateData(recvBuffer, (short)0, BIP32_KEY_SIZE);
+        ephemeralkey.setS(recvBuffer, (short)0, BIP32_KEY_SIZE);
+        // recvBuffer= [size(2b) | response prefix]
+        short size= signEphemeralKey(ephemeralkey, recvBuffer, (short)2);
+        Util.setShort(recvBuffer, (short)0, size);
+        Util.arrayCopyNonAtomic(recvBuffer, (short)0, sc_key_pool, (short)(index*SC_POOL_ENTRY_SIZE), (short)(2+size));
+        Util.arrayFillNonAtomic(recvBuffer, (short)0, (short)(2+size), (byte)0);
+        sc_pool_state[index]= SC_POOL_READY;
+    }
+    
+    /** Returns the index of an empty entry of the pool, or -1 if the pool is full */
+    private short getEmptyPoolEntry(){
+        for (short i=(short)0; i<SC_POOL_SIZE; i++){
+            if (sc_pool_state[i]==SC_POOL_EMPTY)
+                return i;
+        }
+        return (short)-1;
+    }
+    
+    /**
+     * This function allows to resume a Secure Channel with the ticket issued at the last initialization 
+     * or resumption, without a new key agreement nor signature.
+     * 
+     * The session keys and the next ticket are derived from the ticket secret and fresh nonces:
+     *      session_key = HmacSha160(ticket_secret, host_nonce | card_nonce | "sc_key")[0:16]
+     *      mac_key = HmacSha160(ticket_secret, host_nonce | card_nonce | "sc_mac")
+     *      next ticket_secret = HmacSha160(ticket_secret, host_nonce | card_nonce | "sc_res")
+     * A ticket is consumed by a successful resumption, which issues the next ticket of the chain. 
+     * The lifetime of a chain is bounded: it allows MAX_SC_RESUMPTIONS resumptions and is revoked by 
+     * the next InitiateSecureChannel or a reset to factory. The ticket is kept in persistent memory, 
+     * so that it survives a reconnection, and is replaced with its use counter in a single atomic copy. 
+     * A command with a wrong mac fails without changing the ticket nor the current session, 
+     * so that a party who only sees the ticket_id cannot revoke it.
+     * 
+     *  ins: 0x83
+     *  p1: 0x00
+     *  p2: MAC mode of the commands, as in InitiateSecureChannel
+     *  data: [ticket_id(8b) | host_nonce(16b) | mac(20b)] where mac= HmacSha160(ticket_secret, ticket_id | host_nonce)
+     *  return: [card_nonce(16b) | next_ticket_id(8b) | mac(20b) | mac_mode(1b) (if p2 is not 0x00)] 
+     *          where mac= HmacSha160(mac_key, card_nonce | next_ticket_id)
+     */
+    private short ResumeSecureChannel(APDU apdu, byte[] buffer){
+        byte p2= buffer[ISO7816.OFFSET_P2];
+        short bytesLeft = io_state[IO_DATA_SIZE];
+        short offset = ISO7816.OFFSET_CDATA;
+        if (bytesLeft < (short)(SIZE_SC_TICKET_ID+SIZE_SC_NONCE+HmacSha160.HASHSIZE))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        
+        if ((sc_ticket[OFFSET_SC_TICKET_USES]==0) || 
+                (Util.arrayCompare(buffer, offset, sc_ticket, (short)0, SIZE_SC_TICKET_ID) != (byte)0))
+            ISOException.throwIt(SW_SECURE_CHANNEL_UNINITIALIZED);
+        HmacSha160.computeHmacSha160(sc_ticket, SIZE_SC_TICKET_ID, HmacSha160.HASHSIZE, buffer, offset, (short)(SIZE_SC_TICKET_ID+SIZE_SC_NONCE), recvBuffer, (short)0);
+        if (Util.arrayCompare(recvBuffer, (short)0, buffer, (short)(offset+SIZE_SC_TICKET_ID+SIZE_SC_NONCE), HmacSha160.HASHSIZE) != (byte)0)
+            ISOException.throwIt(SW_SECURE_CHANNEL_WRONG_MAC); // the ticket is only consumed by a valid request
+        initialized_secure_channel= false;
+        
+        // recvBuffer= [host_nonce | card_nonce | label(6b) | derived key | next_ticket_id | next_ticket_secret | uses]
+        short label_offset= (short)(2*SIZE_SC_NONCE);
+        short key_offset= (short)(label_offset+6);
+        short ticket_offset= (short)(key_offset+HmacSha160.HASHSIZE);
+        Util.arrayCopyNonAtomic(buffer, (short)(offset+SIZE_SC_TICKET_ID), recvBuffer, (short)0, SIZE_SC_NONCE);
+        randomData.generateData(recvBuffer, SIZE_SC_NONCE, SIZE_SC_NONCE);
+        Util.arrayCopyNonAtomic(CST_SC, (short)6, recvBuffer, label_offset, (short)6);
+        HmacSha160.computeHmacSha160(sc_ticket, SIZE_SC_TICKET_ID, HmacSha160.HASHSIZE, recvBuffer, (short)0, key_offset, sc_buffer, OFFSET_SC_MACKEY);
+        Util.arrayCopyNonAtomic(CST_SC, (short)0, recvBuffer, label_offset, (short)6);
+        HmacSha160.computeHmacSha160(sc_ticket, SIZE_SC_TICKET_ID, HmacSha160.HASHSIZE, recvBuffer, (short)0, key_offset, recvBuffer, key_offset);
+        sc_sessionkey.setKey(recvBuffer, key_offset);
+        Util.arrayCopyNonAtomic(CST_SC_RESUME, (short)0, recvBuffer, label_offset, (short)6);
+        randomData.generateData(recvBuffer, ticket_offset, SIZE_SC_TICKET_ID);
+        HmacSha160.computeHmacSha160(sc_ticket, SIZE_SC_TICKET_ID, HmacSha160.HASHSIZE, recvBuffer, (short)0, key_offset, recvBuffer, (short)(ticket_offset+SIZE_SC_TICKET_ID));
+        recvBuffer[(short)(ticket_offset+OFFSET_SC_TICKET_USES)]= (byte)(sc_ticket[OFFSET_SC_TICKET_USES]-1);
+        Util.arrayCopy(recvBuffer, ticket_offset, sc_ticket, (short)0, (short)(SIZE_SC_TICKET+1));
+        
+        //reset IV counter
+        Util.arrayFillNonAtomic(sc_buffer, OFFSET_SC_IV, SIZE_SC_IV, (byte) 0);
+        initSecureChannelMac(p2);
+        initialized_secure_channel= true;
+        
+        // buffer= [card_nonce | next_ticket_id | mac | mac_mode]
+        Util.arrayCopyNonAtomic(recvBuffer, SIZE_SC_NONCE, buffer, (short)0, SIZE_SC_NONCE);
+        Util.arrayCopyNonAtomic(sc_ticket, (short)0, buffer, SIZE_SC_NONCE, SIZE_SC_TICKET_ID);
+        short size= (short)(SIZE_SC_NONCE+SIZE_SC_TICKET_ID);
+        HmacSha160.computeHmacSha160(sc_mac_ctx, (short)0, buffer, (short)0, size, buffer, size);
+        Util.arrayFillNonAtomic(recvBuffer, (short)0, (short)(ticket_offset+SIZE_SC_TICKET+1), (byte)0);
+        size+= HmacSha160.HASHSIZE;
+        if (p2!=SC_MAC_HMAC_SHA1){
+            buffer[size]= sc_mac_mode[0];
+            size++;
+        }
+        return size;
+    }
+    
+    /**
+     * This function allows to replace the keys of the current Secure Channel, without a new key agreement 
+     * nor signature, so that the keys can be rotated regularly during long sessions.
+     * 
+     * The next keys are derived from the current MAC key and fresh nonces, as in ResumeSecureChannel():
+     *      session_key = HmacSha160(mac_key, host_nonce | card_nonce | "sc_key")[0:16]
+     *      next mac_key = HmacSha160(mac_key, host_nonce | card_nonce | "sc_mac")
+     * The previous keys cannot be recovered from the next ones. The MAC mode and the IV counter are kept, 
+     * and the session is unchanged if the mac is wrong.
+     * 
+     *  ins: 0x84
+     *  p1: 0x00
+     *  p2: 0x00
+     *  data: [host_nonce(16b) | mac(20b)] where mac= HmacSha160(mac_key, host_nonce)
+     *  return: [card_nonce(16b) | mac(20b)] where mac= HmacSha160(next mac_key, card_nonce)
+     */
+    private short RekeySecureChannel(APDU apdu, byte[] buffer){
+        short bytesLeft = io_state[IO_DATA_SIZE];
+        short offset = ISO7816.OFFSET_CDATA;
+        if (!initialized_secure_channel)
+            ISOException.throwIt(SW_SECURE_CHANNEL_UNINITIALIZED);
+        if (bytesLeft < (short)(SIZE_SC_NONCE+HmacSha160.HASHSIZE))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        HmacSha160.computeHmacSha160(sc_mac_ctx, (short)0, buffer, offset, SIZE_SC_NONCE, recvBuffer, (short)0);
+        if (Util.arrayCompare(recvBuffer, (short)0, buffer, (short)(offset+SIZE_SC_NONCE), HmacSha160.HASHSIZE) != (byte)0)
+            ISOException.throwIt(SW_SECURE_CHANNEL_WRONG_MAC);
+        
+        // recvBuffer= [host_nonce | card_nonce | label(6b) | session key | next mac key]
+        short label_offset= (short)(2*SIZE_SC_NONCE);
+        short key_offset= (short)(label_offset+6);
+        short mackey_offset= (short)(key_offset+HmacSha160.HASHSIZE);
+        Util.arrayCopyNonAtomic(buffer, offset, recvBuffer, (short)0, SIZE_SC_NONCE);
+        randomData.generateData(recvBuffer, SIZE_SC_NONCE, SIZE_SC_NONCE);
+        Util.arrayCopyNonAtomic(CST_SC, (short)0, recvBuffer, label_offset, (short)6);
+        HmacSha160.computeHmacSha160(sc_buffer, OFFSET_SC_MACKEY, SIZE_SC_MACKEY, recvBuffer, (short)0, key_offset, recvBuffer, key_offset);
+        Util.arrayCopyNonAtomic(CST_SC, (short)6, recvBuffer, label_offset, (short)6);
+        HmacSha160.computeHmacSha160(sc_buffer, OFFSET_SC_MACKEY, SIZE_SC_MACKEY, recvBuffer, (short)0, key_offset, recvBuffer, mackey_offset);
+        sc_sessionkey.setKey(recvBuffer, key_offset);
+        Util.arrayCopyNonAtomic(recvBuffer, mackey_offset, sc_buffer, OFFSET_SC_MACKEY, SIZE_SC_MACKEY);
+        initSecureChannelMac(sc_mac_mode[0]);
+        
+        // buffer= [card_nonce | mac]
+        Util.arrayCopyNonAtomic(recvBuffer, SIZE_SC_NONCE, buffer, (short)0, SIZE_SC_NONCE);
+        HmacSha160.computeHmacSha160(sc_mac_ctx, (short)0, buffer, (short)0, SIZE_SC_NONCE, buffer, SIZE_SC_NONCE);
+        Util.arrayFillNonAtomic(recvBuffer, (short)0, (short)(mackey_offset+SIZE_SC_MACKEY), (byte)0);
+        return (short)(SIZE_SC_NONCE+HmacSha160.HASHSIZE);
+    }
+    
+    /**
+     * Sets the MAC of the secure channel commands, with the MAC key in sc_buffer:
+     *      0x00: HMAC-SHA1 (20b) in software, with the pads of the MAC key computed once per session
+     *      0x01: HMAC-SHA256 (32b) with the native Signature engine, keyed with the MAC key
+     *      0x02: AES-CMAC (16b) with the native Signature engine, keyed with the first 16 bytes of the MAC key
+     *      0x03: AES-CMAC (16b) of commands and responses, which are encrypted with AES-CTR instead of 
+     *            AES-CBC (see cryptSecureChannelCtr()), so that messages are not padded
+     * Native engines are keyed once per session, then only hash the commands. HMAC-SHA1 is used
+     * if the mode requested is not supported by the card.
+     */
+    private void initSecureChannelMac(byte mode){
+        HmacSha160.setKey(sc_buffer, OFFSET_SC_MACKEY, SIZE_SC_MACKEY, sc_mac_ctx, (short)0); // also MACs the resume response
+        sc_mac_mode[0]= SC_MAC_HMAC_SHA1;
+        if ((mode==SC_MAC_HMAC_SHA256) && (sc_hmac_sha256!=null)){
+            sc_hmac_key.setKey(sc_buffer, OFFSET_SC_MACKEY, SIZE_SC_MACKEY);
+            sc_hmac_sha256.init(sc_hmac_key, Signature.MODE_VERIFY);
+            sc_mac_mode[0]= mode;
+        }
+        else if ((mode==SC_MAC_AES_CMAC) && (sc_cmac!=null)){
+            sc_cmac_key.setKey(sc_buffer, OFFSET_SC_MACKEY);
+            sc_cmac.init(sc_cmac_key, Signature.MODE_VERIFY);
+            sc_mac_mode[0]= mode;
+        }
+        else if ((mode==SC_AEAD_AES_CTR_CMAC) && (sc_cmac!=null)){
+            sc_cmac_key.setKey(sc_buffer, OFFSET_SC_MACKEY);
+            sc_cmac.init(sc_cmac_key, Signature.MODE_SIGN);
+            sc_aes128_ecb.init(sc_sessionkey, Cipher.MODE_ENCRYPT);
+            sc_mac_mode[0]= mode;
+        }
+    }
+    
+    /**
+     * Encrypts or decrypts data in place with AES-CTR and sc_sessionkey. The counter block of the 
+     * first byte is the IV plus block (as 16-byte big-endian numbers), and is incremented for each block.
+     * The counter blocks are written in tmpBuffer and encrypted with a single doFinal of the native ECB 
+     * engine, by TMP_BUFFER_SIZE bytes, then xored with the data.
+     */
+    private void cryptSecureChannelCtr(byte[] iv, short iv_offset, short block, byte[] buffer, short offset, short length){
+        // tmpBuffer2= [counter block(16b) | block (16b)]
+        Util.arrayCopyNonAtomic(iv, iv_offset, tmpBuffer2, (short)0, SIZE_SC_IV);
+        Util.arrayFillNonAtomic(tmpBuffer2, SIZE_SC_IV, SIZE_SC_IV, (byte)0);
+        Util.setShort(tmpBuffer2, (short)(2*SIZE_SC_IV-2), block);
+        Biginteger.add_carry(tmpBuffer2, (short)0, tmpBuffer2, SIZE_SC_IV, SIZE_SC_IV);
+        while (length>0){
+            short size= TMP_BUFFER_SIZE;
+            if (length<size)
+                size= (short)((short)(length+AES_BLOCKSIZE-1) & (short)0xFFF0);
+            for (short i=0; i<size; i+=AES_BLOCKSIZE){
+                Util.arrayCopyNonAtomic(tmpBuffer2, (short)0, tmpBuffer, i, SIZE_SC_IV);
+                Biginteger.add1_carry(tmpBuffer2, (short)0, SIZE_SC_IV);
+            }
+            sc_aes128_ecb.doFinal(tmpBuffer, (short)0, size, tmpBuffer, (short)0);
+            if (size>length)
+                size= length;
+            // whole blocks by 4 bytes, then the bytes of the last partial block
+            short blocks_size= (short)(size & (short)0xFFF0);
+            short i= (short)0;
+            while (i<blocks_size){
+                buffer[offset]^= tmpBuffer[i];
+                buffer[(short)(offset+1)]^= tmpBuffer[(short)(i+1)];
+                buffer[(short)(offset+2)]^= tmpBuffer[(short)(i+2)];
+                buffer[(short)(offset+3)]^= tmpBuffer[(short)(i+3)];
+                offset+= 4;
+                i+= 4;
+            }
+            while (i<size){
+                buffer[offset]^= tmpBuffer[i];
+                offset++;
+                i++;
+            }
+            length-= size;
+        }
+    }
+    
+    /** Returns true if mac (of the size of the MAC mode) is the MAC of the message for the secure channel */
+    private boolean verifySecureChannelMac(byte[] buffer, short offset, short length, short mac_offset, short mac_size){
+        if (sc_mac_mode[0]==SC_MAC_HMAC_SHA256)
+            return (mac_size==(short)32) && sc_hmac_sha256.verify(buffer, offset, length, buffer, mac_offset, mac_size);
+        if (sc_mac_mode[0]==SC_MAC_AES_CMAC)
+            return (mac_size==(short)16) && sc_cmac.verify(buffer, offset, length, buffer, mac_offset, mac_size);
+        if (sc_mac_mode[0]==SC_AEAD_AES_CTR_CMAC){
+            // the engine also signs the responses
+            if (mac_size!=(short)16)
+                return false;
+            sc_cmac.sign(buffer, offset, length, tmpBuffer2, (short)0);
+            return (Util.arrayCompare(tmpBuffer2, (short)0, buffer, mac_offset, mac_size) == (byte)0);
+        }
+        if (mac_size != HmacSha160.HASHSIZE)
+            return false;
+        HmacSha160.computeHmacSha160(sc_mac_ctx, (short)0, buffer, offset, length, tmpBuffer2, (short)0);
+        return (Util.arrayCompare(tmpBuffer2, (short)0, buffer, mac_offset, HmacSha160.HASHSIZE) == (byte)0);
+    }
 
     /**
      * This function allows to decrypt a secure channel message
@@ -2274,13 +3930,16 @@ public class SeedKeeper extends javacard.framework.Applet {
      *  p1: 0x00 (RFU)
      *  p2: 0x00 (RFU)
      *  data: [IV(16b) | data_size(2b) | encrypted_command | mac_size(2b) | mac]
+     *      where mac is computed over [IV | data_size | encrypted_command] with the MAC mode of the session,
+     *      and the command is [CLA | INS | P1 | P2 | Lc | data], or [CLA | INS | P1 | P2 | 00 | Lc(2b) | data]
+     *      with the flag SC_CLA_EXTENDED (0x01) set in CLA
      *  
      *  return: [decrypted command]
      *   
      */
     private short ProcessSecureChannel(APDU apdu, byte[] buffer){
 
-        short bytesLeft = Util.makeShort((byte) 0x00, buffer[ISO7816.OFFSET_LC]);
+        short bytesLeft = io_state[IO_DATA_SIZE];
         short offset = ISO7816.OFFSET_CDATA;
 
         if (!initialized_secure_channel){
@@ -2294,12 +3953,9 @@ public class SeedKeeper extends javacard.framework.Applet {
         if (bytesLeft<(short)(SIZE_SC_IV+2+sizein+2))
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         short sizemac= Util.getShort(buffer, (short) (offset+SIZE_SC_IV+2+sizein));
-        if (sizemac != (short)20)
-            ISOException.throwIt(SW_SECURE_CHANNEL_WRONG_MAC);
         if (bytesLeft<(short)(SIZE_SC_IV+2+sizein+2+sizemac))
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-        HmacSha160.computeHmacSha160(sc_buffer, OFFSET_SC_MACKEY, SIZE_SC_MACKEY, buffer, offset, (short)(SIZE_SC_IV+2+sizein), tmpBuffer2, (short)0);
-        if ( Util.arrayCompare(tmpBuffer2, (short)0, buffer, (short)(offset+SIZE_SC_IV+2+sizein+2), (short)20) != (byte)0 )
+        if (!verifySecureChannelMac(buffer, offset, (short)(SIZE_SC_IV+2+sizein), (short)(offset+SIZE_SC_IV+2+sizein+2), sizemac))
             ISOException.throwIt(SW_SECURE_CHANNEL_WRONG_MAC);
 
         // process IV
@@ -2310,10 +3966,11 @@ public class SeedKeeper extends javacard.framework.Applet {
         if ( !Biginteger.lessThan(sc_buffer, OFFSET_SC_IV_COUNTER, buffer, (short)(offset+SIZE_SC_IV_RANDOM), SIZE_SC_IV_COUNTER ) ) //and greater than local IV
             ISOException.throwIt(SW_SECURE_CHANNEL_WRONG_IV);
         // update local IV
-        Util.arrayCopy(buffer, (short)(offset+SIZE_SC_IV_RANDOM), sc_buffer, OFFSET_SC_IV_COUNTER, SIZE_SC_IV_COUNTER);
+        Util.arrayCopyNonAtomic(buffer, (short)(offset+SIZE_SC_IV_RANDOM), sc_buffer, OFFSET_SC_IV_COUNTER, SIZE_SC_IV_COUNTER);
         Biginteger.add1_carry(sc_buffer, OFFSET_SC_IV_COUNTER, SIZE_SC_IV_COUNTER);
         randomData.generateData(sc_buffer, OFFSET_SC_IV_RANDOM, SIZE_SC_IV_RANDOM);
-        sc_aes128_cbc.init(sc_sessionkey, Cipher.MODE_DECRYPT, buffer, offset, SIZE_SC_IV);
+        if (sc_mac_mode[0]!=SC_AEAD_AES_CTR_CMAC)
+            sc_aes128_cbc.init(sc_sessionkey, Cipher.MODE_DECRYPT, buffer, offset, SIZE_SC_IV);
         offset+=SIZE_SC_IV;
         bytesLeft-=SIZE_SC_IV;
 
@@ -2322,10 +3979,118 @@ public class SeedKeeper extends javacard.framework.Applet {
         bytesLeft-=2;
         if (bytesLeft<sizein)
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-        short sizeout=sc_aes128_cbc.doFinal(buffer, offset, sizein, buffer, (short) (0));
+        short sizeout=sizein;
+        if (sc_mac_mode[0]==SC_AEAD_AES_CTR_CMAC){
+            // the IV is the first counter block, the command is not padded
+            cryptSecureChannelCtr(buffer, ISO7816.OFFSET_CDATA, (short)0, buffer, offset, sizein);
+            Util.arrayCopyNonAtomic(buffer, offset, buffer, (short)0, sizein);
+        }else{
+            sizeout=sc_aes128_cbc.doFinal(buffer, offset, sizein, buffer, (short) (0));
+        }
+        
+        // decrypted command: [CLA | INS | P1 | P2 | Lc | data | padding]
+        // or [CLA | INS | P1 | P2 | 00 | Lc(2b) | data | padding] for an extended command, 
+        // flagged by SC_CLA_EXTENDED in CLA (authenticated by the mac with the rest of the command)
+        short size;
+        if ((buffer[ISO7816.OFFSET_CLA] & SC_CLA_EXTENDED) != 0){
+            if (sizeout<ISO7816.OFFSET_EXT_CDATA)
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            size= Util.getShort(buffer, (short)(ISO7816.OFFSET_LC+1));
+            if ((size<0) || (size>(short)(sizeout-ISO7816.OFFSET_EXT_CDATA)))
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            Util.arrayCopyNonAtomic(buffer, ISO7816.OFFSET_EXT_CDATA, buffer, ISO7816.OFFSET_CDATA, size);
+        }else{
+            size= Util.makeShort((byte)0x00, buffer[ISO7816.OFFSET_LC]);
+            if (size>(short)(sizeout-ISO7816.OFFSET_CDATA))
+                size= (short)0; // command without Lc, the padding was read instead
+        }
+        io_state[IO_DATA_SIZE]= size;
         return sizeout;
     }
     
+    /**
+     * This function executes several commands sent in a single secure channel message,
+     * in sequence and as if they were sent one by one, until a command fails.
+     * The commands are checked before any is executed. Commands answered with GET RESPONSE 
+     * (printLogs with p1 0x01 to 0x03) cannot be batched.
+     *  
+     *  ins: 0x85
+     *  p1: 0x00 (RFU)
+     *  p2: 0x00 (RFU)
+     *  data: [CLA | INS | P1 | P2 | Lc | data] * nb_commands
+     *  return: [SW(2b) | size(2b) | response] * nb_commands_executed
+     *      The commands after the first SW different from 0x9000 are not executed.
+     *      A command is executed only if the response can hold its SW, and its response is 
+     *      replaced by SW_FILE_FULL if it exceeds the space left in the response.
+     */
+    private short processBatch(APDU apdu, byte[] buffer){
+        short size= io_state[IO_DATA_SIZE];
+        if (size>BATCH_BUFFER_SIZE)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        
+        // check the commands
+        short offset= ISO7816.OFFSET_CDATA;
+        short end= (short)(ISO7816.OFFSET_CDATA+size);
+        if (size==0)
+            ISOException.throwIt(SW_INVALID_PARAMETER);
+        while (offset<end){
+            if ((short)(end-offset)<ISO7816.OFFSET_CDATA)
+                ISOException.throwIt(SW_INVALID_PARAMETER);
+            if ( (buffer[(short)(offset+ISO7816.OFFSET_INS)]==INS_PRINT_LOGS) 
+                    && (buffer[(short)(offset+ISO7816.OFFSET_P1)]>=(byte)0x01) && (buffer[(short)(offset+ISO7816.OFFSET_P1)]<=(byte)0x03) )
+                ISOException.throwIt(SW_INVALID_PARAMETER);
+            offset+= (short)(ISO7816.OFFSET_CDATA+Util.makeShort((byte)0x00, buffer[(short)(offset+ISO7816.OFFSET_LC)]));
+            if (offset>end)
+                ISOException.throwIt(SW_INVALID_PARAMETER);
+        }
+        
+        // batchBuffer= [responses | space left | commands not executed yet]
+        short max_size= io_state[IO_MAX_RESPONSE];
+        short cmd_offset= (short)(BATCH_BUFFER_SIZE-size);
+        short out_offset= (short)0;
+        Util.arrayCopyNonAtomic(buffer, ISO7816.OFFSET_CDATA, batchBuffer, cmd_offset, size);
+        while (cmd_offset<BATCH_BUFFER_SIZE){
+            short cmd_size= (short)(ISO7816.OFFSET_CDATA+Util.makeShort((byte)0x00, batchBuffer[(short)(cmd_offset+ISO7816.OFFSET_LC)]));
+            short limit= (short)(cmd_offset+cmd_size);
+            if (limit>max_size)
+                limit= max_size;
+            short room= (short)(limit-out_offset-4);
+            if (room<0)
+                break;
+            
+            Util.arrayCopyNonAtomic(batchBuffer, cmd_offset, buffer, (short)0, cmd_size);
+            cmd_offset+= cmd_size;
+            io_state[IO_DATA_SIZE]= (short)(cmd_size-ISO7816.OFFSET_CDATA);
+            io_state[IO_MAX_RESPONSE]= room;
+            short sw= ISO7816.SW_NO_ERROR;
+            short sizeout= (short)0;
+            try{
+                sizeout= processInstruction(apdu, buffer);
+                if (sizeout>room){
+                    sw= ISO7816.SW_FILE_FULL;
+                    sizeout= (short)0;
+                }
+            } catch (ISOException e){
+                sw= e.getReason();
+            } catch (RuntimeException e){
+                sw= ISO7816.SW_UNKNOWN;
+            }
+            if (JCSystem.getTransactionDepth()!=0)
+                JCSystem.abortTransaction();
+            commitLog(sw);
+            
+            Util.setShort(batchBuffer, out_offset, sw);
+            Util.setShort(batchBuffer, (short)(out_offset+2), sizeout);
+            Util.arrayCopyNonAtomic(buffer, (short)0, batchBuffer, (short)(out_offset+4), sizeout);
+            out_offset+= (short)(4+sizeout);
+            if (sw!=ISO7816.SW_NO_ERROR)
+                break;
+        }
+        Util.arrayCopyNonAtomic(batchBuffer, (short)0, buffer, (short)0, out_offset);
+        Util.arrayFillNonAtomic(batchBuffer, (short)0, BATCH_BUFFER_SIZE, (byte)0x00);
+        return out_offset;
+    }
+    
     
     /*********************************************
      *      Methods for PKI personalization      *
@@ -2347,7 +4112,7 @@ public class SeedKeeper extends javacard.framework.Applet {
         if (personalizationDone)
             ISOException.throwIt(SW_PKI_ALREADY_LOCKED);
         
-        short bytesLeft = Util.makeShort((byte) 0x00, buffer[ISO7816.OFFSET_LC]);
+        short bytesLeft = io_state[IO_DATA_SIZE];
         if (bytesLeft < (short)32)
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         
@@ -2391,7 +4156,7 @@ public class SeedKeeper extends javacard.framework.Applet {
         if (personalizationDone)
             ISOException.throwIt(SW_PKI_ALREADY_LOCKED);
         
-        short bytesLeft = Util.makeShort((byte) 0x00, buffer[ISO7816.OFFSET_LC]);
+        short bytesLeft = io_state[IO_DATA_SIZE];
         short buffer_offset = (short) (ISO7816.OFFSET_CDATA);
         
         byte op = buffer[ISO7816.OFFSET_P2];
@@ -2461,7 +4226,7 @@ public class SeedKeeper extends javacard.framework.Applet {
                 return (short)2; 
                 
             case OP_PROCESS: 
-                short bytesLeft = Util.makeShort((byte) 0x00, buffer[ISO7816.OFFSET_LC]);
+                short bytesLeft = io_state[IO_DATA_SIZE];
                 if (bytesLeft < (short)4)
                     ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
                 
@@ -2520,7 +4285,7 @@ public class SeedKeeper extends javacard.framework.Applet {
         if (!pins[0].isValidated())
             ISOException.throwIt(SW_UNAUTHORIZED);
         
-        short bytesLeft = Util.makeShort((byte) 0x00, buffer[ISO7816.OFFSET_LC]);
+        short bytesLeft = io_state[IO_DATA_SIZE];
         if (bytesLeft < (short)32)
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         